@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Geometry values stored in blocks of consecutive docIDs, with the envelope
+ * of every geometry in a block, so a scan can skip whole blocks.
+ *
+ * @see GeometryDocValuesFormat
+ */
+public interface BlockEnvelopes {
+
+  /**
+   * @return log2 of the number of documents in a block
+   */
+  public int getBlockShift();
+
+  /**
+   * @return false if no document of the block has a non-empty geometry,
+   *         else true with env set to the envelope of all of them
+   */
+  public boolean getBlockEnvelope(int block, Envelope env);
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only 2D CoordinateSequence over x,y doubles in a ByteBuffer, which
+ * may be direct (off-heap).  Only absolute gets are used, so many views can
+ * share one buffer across threads.
+ * <p/>
+ * JTS asks for the whole Coordinate[] in relate, distance and noding.  It is
+ * made on the heap the first time and kept while memory allows, as
+ * PackedCoordinateSequence does, so one test does not copy a ring twice.
+ */
+public class BufferCoordinateSequence implements CoordinateSequence {
+
+  final ByteBuffer buffer;
+  final int offset;
+  final int size;
+
+  private SoftReference<Coordinate[]> coordRef;
+
+  /**
+   * @param offset byte position of the first x
+   * @param size number of coordinates
+   */
+  public BufferCoordinateSequence(ByteBuffer buffer, int offset, int size) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.size = size;
+  }
+
+  @Override
+  public int getDimension() {
+    return 2;
+  }
+
+  @Override
+  public Coordinate getCoordinate(int i) {
+    Coordinate[] coords = getCachedCoords();
+    return coords != null ? coords[i] : getCoordinateCopy(i);
+  }
+
+  private Coordinate[] getCachedCoords() {
+    return coordRef == null ? null : coordRef.get();
+  }
+
+  @Override
+  public Coordinate getCoordinateCopy(int i) {
+    return new Coordinate(getX(i), getY(i));
+  }
+
+  @Override
+  public void getCoordinate(int index, Coordinate coord) {
+    coord.x = getX(index);
+    coord.y = getY(index);
+  }
+
+  @Override
+  public double getX(int index) {
+    return buffer.getDouble(offset + (index << 4));
+  }
+
+  @Override
+  public double getY(int index) {
+    return buffer.getDouble(offset + (index << 4) + 8);
+  }
+
+  @Override
+  public double getOrdinate(int index, int ordinateIndex) {
+    switch (ordinateIndex) {
+      case CoordinateSequence.X: return getX(index);
+      case CoordinateSequence.Y: return getY(index);
+    }
+    return Double.NaN;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void setOrdinate(int index, int ordinateIndex, double value) {
+    throw new UnsupportedOperationException("read only");
+  }
+
+  @Override
+  public Coordinate[] toCoordinateArray() {
+    Coordinate[] coords = getCachedCoords();
+    if (coords != null) {
+      return coords;
+    }
+    coords = new Coordinate[size];
+    for (int i = 0; i < size; i++) {
+      coords[i] = getCoordinateCopy(i);
+    }
+    coordRef = new SoftReference<Coordinate[]>(coords);
+    return coords;
+  }
+
+  @Override
+  public Envelope expandEnvelope(Envelope env) {
+    for (int i = 0; i < size; i++) {
+      env.expandToInclude(getX(i), getY(i));
+    }
+    return env;
+  }
+
+  /**
+   * The view is read only, so a clone can share the buffer
+   */
+  @Override
+  public Object clone() {
+    return new BufferCoordinateSequence(buffer, offset, size);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder str = new StringBuilder("(");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) str.append(", ");
+      str.append(getX(i)).append(' ').append(getY(i));
+    }
+    return str.append(')').toString();
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+import com.vividsolutions.jts.io.ParseException;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Reads WKB in place from a BytesRef.  Unlike {@link com.vividsolutions.jts.io.WKBReader}
+ * over an InStream, no bytes are copied and decoding makes no Coordinate
+ * objects: every sequence is a single packed double[] of x,y pairs.  Z values
+ * are skipped since the spatial operations only look at x,y.
+ * <p/>
+ * The double[] of each sequence is new, not a reused buffer: the geometry
+ * outlives the read when it is put in a {@link GeometryCache} or held by a
+ * caller, so it has to own its coordinates.
+ * <p/>
+ * This only saves work while decoding.  JTS asks for the Coordinate[] of a
+ * sequence in relate, distance and noding, and a packed sequence makes one
+ * then (it keeps it while memory allows).  A document that reaches the exact
+ * test allocates about as much as it did with WKBReader; the saving is on the
+ * documents decided without it.
+ * <p/>
+ * It keeps the read position, so use one instance per thread.
+ */
+public class BytesRefWKBReader {
+
+  static final int WKB_POINT = 1;
+  static final int WKB_LINESTRING = 2;
+  static final int WKB_POLYGON = 3;
+  static final int WKB_MULTIPOINT = 4;
+  static final int WKB_MULTILINESTRING = 5;
+  static final int WKB_MULTIPOLYGON = 6;
+  static final int WKB_GEOMETRYCOLLECTION = 7;
+
+  final GeometryFactory factory;
+
+  private byte[] buf;
+  private int pos;
+  private int end;
+  private boolean littleEndian;
+
+  public BytesRefWKBReader(GeometryFactory factory) {
+    this.factory = new GeometryFactory(factory.getPrecisionModel(), factory.getSRID(),
+        PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+  }
+
+  public Geometry read(BytesRef bytes) throws ParseException {
+    this.buf = bytes.bytes;
+    this.pos = bytes.offset;
+    this.end = bytes.offset + bytes.length;
+    try {
+      return readGeometry();
+    }
+    finally {
+      this.buf = null;
+    }
+  }
+
+  private Geometry readGeometry() throws ParseException {
+    require(1);
+    littleEndian = (buf[pos++] == 1);
+
+    int typeInt = readInt();
+    int type = typeInt & 0xff;
+    int dimension = ((typeInt & 0x80000000) != 0) ? 3 : 2;
+    if ((typeInt & 0x20000000) != 0) {
+      readInt(); // SRID
+    }
+
+    switch (type) {
+      case WKB_POINT:
+        return factory.createPoint(readCoordinates(1, dimension));
+      case WKB_LINESTRING:
+        return factory.createLineString(readCoordinates(readCount(), dimension));
+      case WKB_POLYGON:
+        return readPolygon(dimension);
+      case WKB_MULTIPOINT: {
+        Point[] points = new Point[readCount(5)];
+        for (int i = 0; i < points.length; i++) {
+          points[i] = (Point) readGeometryOf(Point.class);
+        }
+        return factory.createMultiPoint(points);
+      }
+      case WKB_MULTILINESTRING: {
+        LineString[] lines = new LineString[readCount(5)];
+        for (int i = 0; i < lines.length; i++) {
+          lines[i] = (LineString) readGeometryOf(LineString.class);
+        }
+        return factory.createMultiLineString(lines);
+      }
+      case WKB_MULTIPOLYGON: {
+        Polygon[] polys = new Polygon[readCount(5)];
+        for (int i = 0; i < polys.length; i++) {
+          polys[i] = (Polygon) readGeometryOf(Polygon.class);
+        }
+        return factory.createMultiPolygon(polys);
+      }
+      case WKB_GEOMETRYCOLLECTION: {
+        Geometry[] geoms = new Geometry[readCount(5)];
+        for (int i = 0; i < geoms.length; i++) {
+          geoms[i] = readGeometry();
+        }
+        return factory.createGeometryCollection(geoms);
+      }
+    }
+    throw new ParseException("Unknown WKB type " + type);
+  }
+
+  private Geometry readGeometryOf(Class<? extends Geometry> clazz) throws ParseException {
+    Geometry geo = readGeometry();
+    if (!clazz.isInstance(geo)) {
+      throw new ParseException("Expected " + clazz.getSimpleName() + " but found " + geo.getGeometryType());
+    }
+    return geo;
+  }
+
+  private Polygon readPolygon(int dimension) throws ParseException {
+    int numRings = readCount(4);
+    if (numRings == 0) {
+      return factory.createPolygon(null, null);
+    }
+    LinearRing shell = factory.createLinearRing(readCoordinates(readCount(), dimension));
+    LinearRing[] holes = new LinearRing[numRings - 1];
+    for (int i = 0; i < holes.length; i++) {
+      holes[i] = factory.createLinearRing(readCoordinates(readCount(), dimension));
+    }
+    return factory.createPolygon(shell, holes);
+  }
+
+  private CoordinateSequence readCoordinates(int size, int dimension) throws ParseException {
+    require(8L * dimension * size);
+    double[] coords = new double[size * 2];
+    for (int i = 0; i < coords.length; i += 2) {
+      coords[i] = readDouble();
+      coords[i + 1] = readDouble();
+      if (dimension > 2) {
+        pos += 8;
+      }
+    }
+    return new PackedCoordinateSequence.Double(coords, 2);
+  }
+
+  private int readCount() throws ParseException {
+    int count = readInt();
+    if (count < 0) {
+      throw new ParseException("Invalid WKB count " + count);
+    }
+    return count;
+  }
+
+  /**
+   * A count of parts that take at least minBytes each, checked against the
+   * bytes left before anything is allocated for them
+   */
+  private int readCount(int minBytes) throws ParseException {
+    int count = readCount();
+    require((long) minBytes * count);
+    return count;
+  }
+
+  private void require(long length) throws ParseException {
+    if (pos + length > end) {
+      throw new ParseException("Unexpected end of WKB");
+    }
+  }
+
+  private int readInt() throws ParseException {
+    require(4);
+    final byte[] b = buf;
+    final int p = pos;
+    pos += 4;
+    if (littleEndian) {
+      return (b[p] & 0xff) | ((b[p + 1] & 0xff) << 8) | ((b[p + 2] & 0xff) << 16) | (b[p + 3] << 24);
+    }
+    return (b[p] << 24) | ((b[p + 1] & 0xff) << 16) | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+  }
+
+  private double readDouble() {
+    final byte[] b = buf;
+    final int p = pos;
+    pos += 8;
+    long bits;
+    if (littleEndian) {
+      bits = (b[p] & 0xffL) | ((b[p + 1] & 0xffL) << 8) | ((b[p + 2] & 0xffL) << 16) | ((b[p + 3] & 0xffL) << 24)
+          | ((b[p + 4] & 0xffL) << 32) | ((b[p + 5] & 0xffL) << 40) | ((b[p + 6] & 0xffL) << 48) | ((b[p + 7] & 0xffL) << 56);
+    }
+    else {
+      bits = ((b[p] & 0xffL) << 56) | ((b[p + 1] & 0xffL) << 48) | ((b[p + 2] & 0xffL) << 40) | ((b[p + 3] & 0xffL) << 32)
+          | ((b[p + 4] & 0xffL) << 24) | ((b[p + 5] & 0xffL) << 16) | ((b[p + 6] & 0xffL) << 8) | (b[p + 7] & 0xffL);
+    }
+    return Double.longBitsToDouble(bits);
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+import com.vividsolutions.jts.io.ParseException;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Streams geometries written by {@link CompactGeometryWriter} out of a
+ * BytesRef, without copying it, into packed coordinate sequences.
+ * <p/>
+ * It keeps the read position, so use one instance per thread.
+ */
+public class CompactGeometryReader {
+
+  final GeometryFactory factory;
+  final ByteArrayDataInput in = new ByteArrayDataInput();
+
+  private double scale;
+  private final long[] prev = new long[2];
+
+  public CompactGeometryReader(GeometryFactory factory) {
+    this.factory = new GeometryFactory(factory.getPrecisionModel(), factory.getSRID(),
+        PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+  }
+
+  public static boolean isCompact(BytesRef bytes) {
+    return bytes.length > 0 && bytes.bytes[bytes.offset] == CompactGeometryWriter.MAGIC;
+  }
+
+  public Geometry read(BytesRef bytes) throws ParseException {
+    readHeader(bytes, null);
+    try {
+      return readGeometry();
+    }
+    catch (ArrayIndexOutOfBoundsException ex) {
+      throw new ParseException("Unexpected end of compact geometry");
+    }
+  }
+
+  /**
+   * Read only the envelope from the header
+   */
+  public void readEnvelope(BytesRef bytes, Envelope env) throws ParseException {
+    readHeader(bytes, env);
+  }
+
+  private void readHeader(BytesRef bytes, Envelope env) throws ParseException {
+    if (!isCompact(bytes) || bytes.length < 6) {
+      throw new ParseException("Not a compact geometry");
+    }
+    in.reset(bytes.bytes, bytes.offset + 1, bytes.length - 1);
+    long width, height;
+    try {
+      scale = Math.pow(10, in.readByte());
+      prev[0] = readZigZag();
+      prev[1] = readZigZag();
+      width = readZigZag();
+      height = readZigZag();
+    }
+    catch (ArrayIndexOutOfBoundsException ex) {
+      throw new ParseException("Unexpected end of compact geometry");
+    }
+    if (env != null) {
+      env.init(prev[0] / scale, (prev[0] + width) / scale, prev[1] / scale, (prev[1] + height) / scale);
+    }
+  }
+
+  private Geometry readGeometry() throws ParseException {
+    int typeByte = in.readByte();
+    int type = typeByte & ~CompactGeometryWriter.EMPTY;
+    boolean empty = (typeByte & CompactGeometryWriter.EMPTY) != 0;
+
+    switch (type) {
+      case BytesRefWKBReader.WKB_POINT:
+        return factory.createPoint(empty ? null : readCoordinates(1, 1));
+      case BytesRefWKBReader.WKB_LINESTRING:
+        if (empty) return factory.createLineString(new PackedCoordinateSequence.Double(new double[0], 2));
+        int count = in.readVInt();
+        return factory.createLineString(readCoordinates(count, count));
+      case BytesRefWKBReader.WKB_POLYGON:
+        return empty ? factory.createPolygon(null, null) : readPolygon();
+      case BytesRefWKBReader.WKB_MULTIPOINT: {
+        Point[] points = new Point[empty ? 0 : readCount()];
+        for (int i = 0; i < points.length; i++) {
+          points[i] = (Point) readGeometry();
+        }
+        return factory.createMultiPoint(points);
+      }
+      case BytesRefWKBReader.WKB_MULTILINESTRING: {
+        LineString[] lines = new LineString[empty ? 0 : readCount()];
+        for (int i = 0; i < lines.length; i++) {
+          lines[i] = (LineString) readGeometry();
+        }
+        return factory.createMultiLineString(lines);
+      }
+      case BytesRefWKBReader.WKB_MULTIPOLYGON: {
+        Polygon[] polys = new Polygon[empty ? 0 : readCount()];
+        for (int i = 0; i < polys.length; i++) {
+          polys[i] = (Polygon) readGeometry();
+        }
+        return factory.createMultiPolygon(polys);
+      }
+      case BytesRefWKBReader.WKB_GEOMETRYCOLLECTION: {
+        Geometry[] geoms = new Geometry[empty ? 0 : readCount()];
+        for (int i = 0; i < geoms.length; i++) {
+          geoms[i] = readGeometry();
+        }
+        return factory.createGeometryCollection(geoms);
+      }
+    }
+    throw new ParseException("Unknown compact geometry type " + type);
+  }
+
+  private Polygon readPolygon() throws ParseException {
+    int numRings = readCount();
+    if (numRings == 0) {
+      throw new ParseException("Polygon without rings");
+    }
+    LinearRing shell = readRing();
+    LinearRing[] holes = new LinearRing[numRings - 1];
+    for (int i = 0; i < holes.length; i++) {
+      holes[i] = readRing();
+    }
+    return factory.createPolygon(shell, holes);
+  }
+
+  private LinearRing readRing() throws ParseException {
+    int count = in.readVInt();
+    return factory.createLinearRing(readCoordinates(count, count - 1));
+  }
+
+  /**
+   * @param size the size of the sequence
+   * @param stored how many are stored; a ring repeats its first coordinate
+   */
+  private CoordinateSequence readCoordinates(int size, int stored) throws ParseException {
+    if (size < 0 || stored > size || stored * 2 > in.length() - in.getPosition()) {
+      throw new ParseException("Invalid coordinate count " + size);
+    }
+    double[] coords = new double[size * 2];
+    int n = Math.max(stored, 0) * 2;
+    for (int i = 0; i < n; i += 2) {
+      prev[0] += readZigZag();
+      prev[1] += readZigZag();
+      coords[i] = prev[0] / scale;
+      coords[i + 1] = prev[1] / scale;
+    }
+    if (size > stored && stored > 0) {
+      coords[n] = coords[0];
+      coords[n + 1] = coords[1];
+    }
+    return new PackedCoordinateSequence.Double(coords, 2);
+  }
+
+  /**
+   * A count of parts, each of which takes at least a byte
+   */
+  private int readCount() throws ParseException {
+    int count = in.readVInt();
+    if (count < 0 || count > in.length() - in.getPosition()) {
+      throw new ParseException("Invalid count " + count);
+    }
+    return count;
+  }
+
+  private long readZigZag() {
+    long z = in.readVLong();
+    return (z >>> 1) ^ -(z & 1);
+  }
+}
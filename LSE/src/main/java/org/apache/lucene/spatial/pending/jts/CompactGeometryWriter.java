@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Writes a compact alternative to WKB.  Coordinates are rounded to a fixed
+ * number of decimal digits and each one is written as the zig-zag varint delta
+ * from the previous one, so a vertex of a detailed polygon usually takes 2-4
+ * bytes instead of 16.  The closing point of a ring is not written.
+ * <pre>
+ *   byte   MAGIC (never a WKB byte order)
+ *   byte   digits
+ *   vlong  minX, minY, maxX-minX, maxY-minY   (all 0 if empty)
+ *   geometry:
+ *     byte  WKB type, with EMPTY set for an empty geometry
+ *     Point:            x, y
+ *     LineString:       vint count, count * (x, y)
+ *     Polygon:          vint rings, per ring: vint count, (count - 1) * (x, y)
+ *     Multi and GeometryCollection: vint count, count * geometry
+ * </pre>
+ * The first coordinate is relative to minX/minY.  With the default 7 digits
+ * the rounding error is at most 5e-8 degrees (about half a centimeter).
+ */
+public class CompactGeometryWriter {
+
+  public static final byte MAGIC = 2;
+  public static final byte EMPTY = (byte) 0x80;
+  public static final int DEFAULT_DIGITS = 7;
+
+  final int digits;
+  final double scale;
+
+  public CompactGeometryWriter() {
+    this(DEFAULT_DIGITS);
+  }
+
+  public CompactGeometryWriter(int digits) {
+    this.digits = digits;
+    this.scale = Math.pow(10, digits);
+  }
+
+  public BytesRef write(Geometry geo) {
+    GrowableOutput out = new GrowableOutput(16 + geo.getNumPoints() * 4);
+    try {
+      out.writeByte(MAGIC);
+      out.writeByte((byte) digits);
+      long[] prev = new long[2];
+      long width = 0;
+      long height = 0;
+      if (!geo.isEmpty()) {
+        Envelope env = geo.getEnvelopeInternal();
+        prev[0] = quantize(env.getMinX());
+        prev[1] = quantize(env.getMinY());
+        width = quantize(env.getMaxX()) - prev[0];
+        height = quantize(env.getMaxY()) - prev[1];
+      }
+      writeZigZag(out, prev[0]);
+      writeZigZag(out, prev[1]);
+      writeZigZag(out, width);
+      writeZigZag(out, height);
+      writeGeometry(out, geo, prev);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex); // not possible writing to memory
+    }
+    return new BytesRef(out.bytes, 0, out.length);
+  }
+
+  /**
+   * @return the envelope the geometry will have once it is written and read back
+   */
+  public Envelope quantize(Envelope env) {
+    if (env.isNull()) {
+      return new Envelope(env);
+    }
+    return new Envelope(
+        quantize(env.getMinX()) / scale, quantize(env.getMaxX()) / scale,
+        quantize(env.getMinY()) / scale, quantize(env.getMaxY()) / scale);
+  }
+
+  long quantize(double v) {
+    return Math.round(v * scale);
+  }
+
+  private void writeGeometry(DataOutput out, Geometry geo, long[] prev) throws IOException {
+    int type = getType(geo);
+    if (geo.isEmpty()) {
+      out.writeByte((byte) (type | EMPTY));
+      return;
+    }
+    out.writeByte((byte) type);
+
+    if (geo instanceof Point) {
+      writeCoordinates(out, ((Point) geo).getCoordinateSequence(), 1, prev);
+    }
+    else if (geo instanceof LineString) {
+      CoordinateSequence seq = ((LineString) geo).getCoordinateSequence();
+      out.writeVInt(seq.size());
+      writeCoordinates(out, seq, seq.size(), prev);
+    }
+    else if (geo instanceof Polygon) {
+      Polygon poly = (Polygon) geo;
+      out.writeVInt(poly.getNumInteriorRing() + 1);
+      writeRing(out, (LinearRing) poly.getExteriorRing(), prev);
+      for (int i = 0; i < poly.getNumInteriorRing(); i++) {
+        writeRing(out, (LinearRing) poly.getInteriorRingN(i), prev);
+      }
+    }
+    else {
+      out.writeVInt(geo.getNumGeometries());
+      for (int i = 0; i < geo.getNumGeometries(); i++) {
+        writeGeometry(out, geo.getGeometryN(i), prev);
+      }
+    }
+  }
+
+  private void writeRing(DataOutput out, LinearRing ring, long[] prev) throws IOException {
+    CoordinateSequence seq = ring.getCoordinateSequence();
+    out.writeVInt(seq.size());
+    writeCoordinates(out, seq, seq.size() - 1, prev); // closed, the reader repeats the first
+  }
+
+  private void writeCoordinates(DataOutput out, CoordinateSequence seq, int count, long[] prev) throws IOException {
+    for (int i = 0; i < count; i++) {
+      long x = quantize(seq.getX(i));
+      long y = quantize(seq.getY(i));
+      writeZigZag(out, x - prev[0]);
+      writeZigZag(out, y - prev[1]);
+      prev[0] = x;
+      prev[1] = y;
+    }
+  }
+
+  static int getType(Geometry geo) {
+    if (geo instanceof Point) return BytesRefWKBReader.WKB_POINT;
+    if (geo instanceof LineString) return BytesRefWKBReader.WKB_LINESTRING;
+    if (geo instanceof Polygon) return BytesRefWKBReader.WKB_POLYGON;
+    if (geo instanceof MultiPoint) return BytesRefWKBReader.WKB_MULTIPOINT;
+    if (geo instanceof MultiLineString) return BytesRefWKBReader.WKB_MULTILINESTRING;
+    if (geo instanceof MultiPolygon) return BytesRefWKBReader.WKB_MULTIPOLYGON;
+    if (geo instanceof GeometryCollection) return BytesRefWKBReader.WKB_GEOMETRYCOLLECTION;
+    throw new IllegalArgumentException("Unsupported geometry: " + geo.getGeometryType());
+  }
+
+  static void writeZigZag(DataOutput out, long v) throws IOException {
+    out.writeVLong((v << 1) ^ (v >> 63));
+  }
+
+  static class GrowableOutput extends DataOutput {
+    byte[] bytes;
+    int length;
+
+    GrowableOutput(int size) {
+      this.bytes = new byte[size];
+    }
+
+    @Override
+    public void writeByte(byte b) {
+      if (length == bytes.length) {
+        bytes = ArrayUtil.grow(bytes);
+      }
+      bytes[length++] = b;
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int len) {
+      bytes = ArrayUtil.grow(bytes, length + len);
+      System.arraycopy(b, offset, bytes, length, len);
+      length += len;
+    }
+  }
+}
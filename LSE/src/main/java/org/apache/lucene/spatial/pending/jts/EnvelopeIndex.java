@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Envelope;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IntroSorter;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+
+/**
+ * A packed STR-tree of the document envelopes of one segment.  Leaves are
+ * made by Sort-Tile-Recursive: the envelopes are sorted into vertical slices
+ * by x, each slice by y, and then cut into nodes of {@link #NODE_SIZE}.  The
+ * levels above pack their children in that order.
+ * <p/>
+ * Everything is in flat arrays.  Boxes are floats rounded outwards, so a
+ * search may return a document whose envelope just misses, never the other
+ * way around.  It is immutable once built.
+ */
+public class EnvelopeIndex {
+
+  public static final int NODE_SIZE = 16;
+
+  // boxes[level] holds minX, minY, maxX, maxY per node; level 0 is the documents
+  final float[][] boxes;
+  final int[] docs;
+
+  EnvelopeIndex(int[] docIDs, float[] envelopes, int count) {
+    final int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    final float[] env = envelopes;
+
+    // sort by center x, then each slice by center y
+    int leaves = (count + NODE_SIZE - 1) / NODE_SIZE;
+    int slices = (int) Math.ceil(Math.sqrt(leaves));
+    int sliceSize = slices == 0 ? count : ((leaves + slices - 1) / slices) * NODE_SIZE;
+    new CenterSorter(order, env, 0).sort(0, count);
+    for (int start = 0; start < count; start += sliceSize) {
+      new CenterSorter(order, env, 1).sort(start, Math.min(count, start + sliceSize));
+    }
+
+    docs = new int[count];
+    float[] level0 = new float[count * 4];
+    for (int i = 0; i < count; i++) {
+      docs[i] = docIDs[order[i]];
+      System.arraycopy(env, order[i] * 4, level0, i * 4, 4);
+    }
+
+    int levels = 1;
+    for (int n = count; n > 1; n = (n + NODE_SIZE - 1) / NODE_SIZE) {
+      levels++;
+    }
+    boxes = new float[levels][];
+    boxes[0] = level0;
+    for (int level = 1; level < levels; level++) {
+      float[] below = boxes[level - 1];
+      int size = below.length / 4;
+      float[] nodes = new float[((size + NODE_SIZE - 1) / NODE_SIZE) * 4];
+      for (int child = 0; child < size; child++) {
+        int node = (child / NODE_SIZE) * 4;
+        int c = child * 4;
+        if (child % NODE_SIZE == 0) {
+          System.arraycopy(below, c, nodes, node, 4);
+        }
+        else {
+          nodes[node] = Math.min(nodes[node], below[c]);
+          nodes[node + 1] = Math.min(nodes[node + 1], below[c + 1]);
+          nodes[node + 2] = Math.max(nodes[node + 2], below[c + 2]);
+          nodes[node + 3] = Math.max(nodes[node + 3], below[c + 3]);
+        }
+      }
+      boxes[level] = nodes;
+    }
+  }
+
+  /**
+   * Build the index from the envelopes of the values; documents without one
+   * (missing or empty geometry) are left out.
+   *
+   * @return the index, or null if the segment has no envelopes
+   */
+  public static EnvelopeIndex build(GeometryDocValues values, int maxDoc) {
+    if (!values.hasEnvelopes()) {
+      return null;
+    }
+    Envelope env = new Envelope();
+    int[] docIDs = new int[16];
+    float[] envelopes = new float[64];
+    int count = 0;
+    for (int docID = 0; docID < maxDoc; docID++) {
+      if (values.exists(docID) && values.getEnvelope(docID, env)) {
+        docIDs = ArrayUtil.grow(docIDs, count + 1);
+        envelopes = ArrayUtil.grow(envelopes, (count + 1) * 4);
+        docIDs[count] = docID;
+        envelopes[count * 4] = roundDown(env.getMinX());
+        envelopes[count * 4 + 1] = roundDown(env.getMinY());
+        envelopes[count * 4 + 2] = roundUp(env.getMaxX());
+        envelopes[count * 4 + 3] = roundUp(env.getMaxY());
+        count++;
+      }
+    }
+    return new EnvelopeIndex(docIDs, envelopes, count);
+  }
+
+  static float roundDown(double v) {
+    float f = (float) v;
+    return f > v ? Math.nextAfter(f, Double.NEGATIVE_INFINITY) : f;
+  }
+
+  static float roundUp(double v) {
+    float f = (float) v;
+    return f < v ? Math.nextAfter(f, Double.POSITIVE_INFINITY) : f;
+  }
+
+  /**
+   * @return the sorted docIDs whose envelope intersects any of envs
+   */
+  public int[] search(Envelope... envs) {
+    Collector hits = new Collector();
+    int top = boxes.length - 1;
+    for (Envelope env : envs) {
+      hits.setQuery(env);
+      for (int node = 0; node < boxes[top].length / 4; node++) {
+        hits.visit(top, node);
+      }
+    }
+    int[] result = Arrays.copyOf(hits.docs, hits.count);
+    Arrays.sort(result);
+    if (envs.length < 2) {
+      return result;
+    }
+    // a document may meet more than one of them
+    int count = 0;
+    for (int i = 0; i < result.length; i++) {
+      if (count == 0 || result[i] != result[count - 1]) {
+        result[count++] = result[i];
+      }
+    }
+    return count == result.length ? result : Arrays.copyOf(result, count);
+  }
+
+  public int size() {
+    return docs.length;
+  }
+
+  public long ramBytesUsed() {
+    long bytes = RamUsageEstimator.sizeOf(docs);
+    for (float[] level : boxes) {
+      bytes += RamUsageEstimator.sizeOf(level);
+    }
+    return bytes;
+  }
+
+  private class Collector {
+    float minX, minY, maxX, maxY;
+    int[] docs = new int[16];
+    int count;
+
+    void setQuery(Envelope env) {
+      minX = roundDown(env.getMinX());
+      minY = roundDown(env.getMinY());
+      maxX = roundUp(env.getMaxX());
+      maxY = roundUp(env.getMaxY());
+    }
+
+    void visit(int level, int node) {
+      float[] b = boxes[level];
+      int i = node * 4;
+      if (b[i] > maxX || b[i + 1] > maxY || b[i + 2] < minX || b[i + 3] < minY) {
+        return;
+      }
+      if (level == 0) {
+        docs = ArrayUtil.grow(docs, count + 1);
+        docs[count++] = EnvelopeIndex.this.docs[node];
+        return;
+      }
+      int end = Math.min((node + 1) * NODE_SIZE, boxes[level - 1].length / 4);
+      for (int child = node * NODE_SIZE; child < end; child++) {
+        visit(level - 1, child);
+      }
+    }
+  }
+
+  /**
+   * Sorts entry numbers by the center of their envelope on one axis
+   */
+  private static class CenterSorter extends IntroSorter {
+    final int[] order;
+    final float[] env;
+    final int axis;
+    float pivot;
+
+    CenterSorter(int[] order, float[] env, int axis) {
+      this.order = order;
+      this.env = env;
+      this.axis = axis;
+    }
+
+    float center(int i) {
+      int e = order[i] * 4;
+      return env[e + axis] + env[e + axis + 2];
+    }
+
+    @Override
+    protected int compare(int i, int j) {
+      return Float.compare(center(i), center(j));
+    }
+
+    @Override
+    protected void swap(int i, int j) {
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+
+    @Override
+    protected void setPivot(int i) {
+      pivot = center(i);
+    }
+
+    @Override
+    protected int comparePivot(int j) {
+      return Float.compare(pivot, center(j));
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.SegmentReader;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Builds an {@link EnvelopeIndex} for a segment the first time it is asked
+ * for and keeps it until the segment core closes.  Segments are immutable,
+ * so the index never needs updating.
+ */
+public class EnvelopeIndexCache {
+
+  // a segment without envelopes maps to NONE
+  private static final EnvelopeIndex NONE = new EnvelopeIndex(new int[0], new float[0], 0);
+
+  final Map<GeometryCache.Key, EnvelopeIndex> indexes = new HashMap<GeometryCache.Key, EnvelopeIndex>();
+
+  private final SegmentReader.CoreClosedListener purgeCore = new SegmentReader.CoreClosedListener() {
+    @Override
+    public void onClose(Object ownerCoreCacheKey) {
+      purge(ownerCoreCacheKey);
+    }
+  };
+
+  /**
+   * @return the index of the field in the segment, or null if it can not have one
+   */
+  public EnvelopeIndex get(AtomicReader reader, String fieldName, GeometryFactory factory) throws IOException {
+    GeometryCache.Key key = new GeometryCache.Key(reader.getCoreCacheKey(), fieldName);
+    EnvelopeIndex index;
+    synchronized (this) {
+      index = indexes.get(key);
+    }
+    if (index == null) {
+      // built outside the lock; if two threads race, both build the same thing
+      GeometryDocValues values = GeometryDocValues.get(reader, fieldName, factory);
+      index = (values == null ? null : EnvelopeIndex.build(values, reader.maxDoc()));
+      if (index == null) {
+        index = NONE;
+      }
+      synchronized (this) {
+        if (indexes.put(key, index) == null) {
+          GeometryCache.addCoreClosedListener(reader, purgeCore);
+        }
+      }
+    }
+    return index == NONE ? null : index;
+  }
+
+  public synchronized void purge(Object coreCacheKey) {
+    Iterator<GeometryCache.Key> it = indexes.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().core == coreCacheKey) {
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized long ramBytesUsed() {
+    long bytes = 0;
+    for (EnvelopeIndex index : indexes.values()) {
+      bytes += index.ramBytesUsed();
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.shape.Circle;
+import com.spatial4j.core.shape.Rectangle;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Tests geometries against a geodesic circle (a spherical cap) without
+ * turning it into a polygon.  A geometry intersects the circle if some point
+ * of it is within the radius of the center, measured on the sphere by
+ * {@link SphericalNearest}.  Edges are the straight lon/lat lines JTS and
+ * the envelopes see, so a geometry never reaches outside its envelope, and
+ * the envelope checks below agree with the exact test.  Longitudes are
+ * compared modulo 360, so geometries kept past the dateline are found too.
+ * The first vertex or edge found close enough ends the test.
+ * <p/>
+ * The circle's bounding box (both halves when it crosses the dateline)
+ * decides most documents by envelope.  The candidate envelope is that box;
+ * the filter also looks 360 degrees east and west of it, so block skipping,
+ * the envelope index and tiles find the geometries past the dateline that
+ * the envelope and exact tests match.  With disjoint=true the answers are
+ * negated, for IsDisjointTo.
+ */
+public class GeodesicCircleTester implements GeometryTest {
+
+  final Circle circle;
+  final boolean disjoint;
+  final Coordinate center;
+  final double cx, cy, cz;
+  final double radius;    // radians
+  final double cosRadius;
+  final double antimeridian;
+  // the bounding box, in two parts across the dateline
+  final Envelope[] boxes;
+  final Envelope candidates;
+
+  // the search keeps state, so each thread gets its own; a plain
+  // ThreadLocal, as the tester has no end to close one at (see PreparedTester)
+  private final ThreadLocal<SphericalNearest> nearest = new ThreadLocal<SphericalNearest>() {
+    @Override
+    protected SphericalNearest initialValue() {
+      return new SphericalNearest(center.x, center.y);
+    }
+  };
+
+  public GeodesicCircleTester(Circle circle, boolean disjoint) {
+    this.circle = circle;
+    this.disjoint = disjoint;
+    this.center = new Coordinate(circle.getCenter().getX(), circle.getCenter().getY());
+    double[] v = toVector(center.x, center.y);
+    this.cx = v[0];
+    this.cy = v[1];
+    this.cz = v[2];
+    this.radius = Math.toRadians(circle.getRadius());
+    this.cosRadius = Math.cos(radius);
+    this.antimeridian = center.x > 0 ? center.x - 180 : center.x + 180;
+
+    Rectangle r = circle.getBoundingBox();
+    if (r.getCrossesDateLine()) {
+      boxes = new Envelope[] {
+          new Envelope(r.getMinX(), 180, r.getMinY(), r.getMaxY()),
+          new Envelope(-180, r.getMaxX(), r.getMinY(), r.getMaxY())
+      };
+      candidates = new Envelope(-180, 180, r.getMinY(), r.getMaxY());
+    }
+    else {
+      boxes = new Envelope[] { new Envelope(r.getMinX(), r.getMaxX(), r.getMinY(), r.getMaxY()) };
+      candidates = boxes[0];
+    }
+  }
+
+  static double[] toVector(double lon, double lat) {
+    double phi = Math.toRadians(lat);
+    double lambda = Math.toRadians(lon);
+    double c = Math.cos(phi);
+    return new double[] { c * Math.cos(lambda), c * Math.sin(lambda), Math.sin(phi) };
+  }
+
+  @Override
+  public boolean matches(Geometry geo) {
+    return nearest.get().isWithin(geo, cosRadius) != disjoint;
+  }
+
+  @Override
+  public Boolean matchesEnvelope(Envelope env) {
+    if (!nearBox(env)) {
+      return disjoint;
+    }
+    // a cap no bigger than a hemisphere meets each meridian in one interval,
+    // and each parallel in one interval centered on the center's longitude;
+    // so if the corners are inside and the envelope does not reach the
+    // opposite longitude, all of it is inside
+    if (radius <= Math.PI / 2 && env.getMinX() >= -180 && env.getMaxX() <= 180
+        && (antimeridian < env.getMinX() || antimeridian > env.getMaxX())
+        && within(env.getMinX(), env.getMinY()) && within(env.getMaxX(), env.getMinY())
+        && within(env.getMinX(), env.getMaxY()) && within(env.getMaxX(), env.getMaxY())) {
+      return !disjoint;
+    }
+    return null;
+  }
+
+  /**
+   * @return true if the envelope meets the bounding box, also 360 degrees over
+   */
+  private boolean nearBox(Envelope env) {
+    for (Envelope box : boxes) {
+      for (int k = -1; k <= 1; k++) {
+        if (box.getMinX() + 360 * k <= env.getMaxX() && box.getMaxX() + 360 * k >= env.getMinX()
+            && box.getMinY() <= env.getMaxY() && box.getMaxY() >= env.getMinY()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean within(double lon, double lat) {
+    double[] v = toVector(lon, lat);
+    return v[0] * cx + v[1] * cy + v[2] * cz >= cosRadius;
+  }
+
+  @Override
+  public Boolean matchesCoarse(Geometry coarse, double tolerance) {
+    // coarse vertices are vertices of the geometry
+    return nearest.get().isVertexWithin(coarse, cosRadius) ? !disjoint : null;
+  }
+
+  @Override
+  public Envelope getCandidateEnvelope() {
+    return disjoint ? null : candidates;
+  }
+
+  @Override
+  public Envelope getLocalEnvelope() {
+    return candidates;
+  }
+
+  @Override
+  public Fragments getFragments() {
+    return disjoint ? Fragments.ALL : Fragments.ANY;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    GeodesicCircleTester that = (GeodesicCircleTester) o;
+    return disjoint == that.disjoint && circle.equals(that.circle);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * circle.hashCode() + (disjoint ? 1 : 0);
+  }
+}
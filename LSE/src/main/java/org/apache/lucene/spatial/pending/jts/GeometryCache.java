@@ -0,0 +1,297 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.Polygon;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps decoded geometries per segment and field, so repeated queries on hot
+ * segments do not decode them again.  Segments are immutable, so an entry
+ * never goes stale; it is dropped when the segment core closes.
+ * <p/>
+ * The estimated size of all cached geometries stays within a budget.  When
+ * a new geometry does not fit, whole segments are evicted, least recently
+ * used first; if it still does not fit it is not cached.  The geometries are
+ * read with packed coordinate sequences, one double[] each, so they are
+ * about as compact as the decoded form gets.
+ * <p/>
+ * One cache can be shared by all strategies and threads.
+ */
+public class GeometryCache {
+
+  final long maxBytes;
+  final Map<Key, Segment> segments = new LinkedHashMap<Key, Segment>(16, 0.75f, true);
+  long ramBytes = 0;
+
+  final AtomicLong hits = new AtomicLong();
+  final AtomicLong misses = new AtomicLong();
+  final AtomicLong evictions = new AtomicLong();
+
+  private final SegmentReader.CoreClosedListener purgeCore = new SegmentReader.CoreClosedListener() {
+    @Override
+    public void onClose(Object ownerCoreCacheKey) {
+      purge(ownerCoreCacheKey);
+    }
+  };
+
+  public GeometryCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * The docID array of a new segment counts against the budget like the
+   * geometries do, and may evict other segments.
+   *
+   * @return the cached geometries of the field in the segment, or null if
+   *         even its docID array does not fit in the budget
+   */
+  public Segment getSegment(AtomicReader reader, String fieldName) {
+    Key key = new Key(reader.getCoreCacheKey(), fieldName);
+    synchronized (this) {
+      Segment segment = segments.get(key);
+      if (segment != null) {
+        return segment;
+      }
+      long bytes = arrayBytes(reader.maxDoc());
+      if (bytes > maxBytes) {
+        return null;
+      }
+      evict(bytes, null);
+      segment = new Segment(key, reader.maxDoc());
+      segment.ramBytes = bytes;
+      segments.put(key, segment);
+      ramBytes += bytes;
+      addCoreClosedListener(reader, purgeCore);
+      return segment;
+    }
+  }
+
+  /**
+   * Find out when the core of a segment closes, the same way FieldCache does
+   */
+  static void addCoreClosedListener(AtomicReader reader, final SegmentReader.CoreClosedListener listener) {
+    if (reader instanceof SegmentReader) {
+      ((SegmentReader) reader).addCoreClosedListener(listener);
+    }
+    else {
+      IndexReader.ReaderClosedListener closed = new IndexReader.ReaderClosedListener() {
+        @Override
+        public void onClose(IndexReader owner) {
+          listener.onClose(owner.getCoreCacheKey());
+        }
+      };
+      Object key = reader.getCoreCacheKey();
+      if (key instanceof AtomicReader) {
+        ((AtomicReader) key).addReaderClosedListener(closed);
+      }
+      else {
+        reader.addReaderClosedListener(closed);
+      }
+    }
+  }
+
+  /**
+   * Drop every field of a segment
+   */
+  public synchronized void purge(Object coreCacheKey) {
+    Iterator<Segment> it = segments.values().iterator();
+    while (it.hasNext()) {
+      Segment segment = it.next();
+      if (segment.key.core == coreCacheKey) {
+        it.remove();
+        release(segment);
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    for (Segment segment : segments.values()) {
+      release(segment);
+    }
+    segments.clear();
+  }
+
+  private void release(Segment segment) {
+    segment.evicted = true;
+    ramBytes -= segment.ramBytes;
+  }
+
+  /**
+   * Make room for bytes more in the segment
+   */
+  synchronized boolean reserve(Segment segment, long bytes) {
+    if (segment.evicted) {
+      return false;
+    }
+    evict(bytes, segment);
+    if (ramBytes + bytes > maxBytes) {
+      return false;
+    }
+    ramBytes += bytes;
+    segment.ramBytes += bytes;
+    return true;
+  }
+
+  /**
+   * Evict segments other than keep, least recently used first, until bytes
+   * more fit or nothing else is left
+   */
+  private void evict(long bytes, Segment keep) {
+    Iterator<Segment> it = segments.values().iterator();
+    while (ramBytes + bytes > maxBytes && it.hasNext()) {
+      Segment eldest = it.next();
+      if (eldest != keep) {
+        it.remove();
+        release(eldest);
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  static long arrayBytes(int maxDoc) {
+    return RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) maxDoc * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+  }
+
+  /**
+   * A rough size of a geometry read by {@link GeometryReader}: the packed
+   * coordinates plus an object overhead per geometry and sequence.
+   */
+  static long estimateBytes(Geometry geo) {
+    return 16L * geo.getNumPoints() + 96L * countParts(geo);
+  }
+
+  private static int countParts(Geometry geo) {
+    if (geo instanceof Polygon) {
+      return 1 + ((Polygon) geo).getNumInteriorRing() + 1;
+    }
+    if (geo instanceof GeometryCollection) {
+      int parts = 1;
+      for (int i = 0; i < geo.getNumGeometries(); i++) {
+        parts += countParts(geo.getGeometryN(i));
+      }
+      return parts;
+    }
+    return 1;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized long ramBytesUsed() {
+    return ramBytes;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return hits / lookups, 0 before any lookup
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  @Override
+  public String toString() {
+    return "GeometryCache(ram=" + ramBytesUsed() + "/" + maxBytes + " hitRate=" + getHitRate()
+        + " evictions=" + getEvictions() + ")";
+  }
+
+  static class Key {
+    final Object core;
+    final String fieldName;
+
+    Key(Object core, String fieldName) {
+      this.core = core;
+      this.fieldName = fieldName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key that = (Key) o;
+      return core == that.core && fieldName.equals(that.fieldName);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(core) + fieldName.hashCode();
+    }
+  }
+
+  /**
+   * The geometries of one field in one segment, by docID
+   */
+  public class Segment {
+    final Key key;
+    final AtomicReferenceArray<Geometry> docs;
+    long ramBytes; // guarded by the cache
+    volatile boolean evicted;
+
+    Segment(Key key, int maxDoc) {
+      this.key = key;
+      this.docs = new AtomicReferenceArray<Geometry>(maxDoc);
+    }
+
+    /**
+     * @return the geometry, or null if it is not cached
+     */
+    public Geometry get(int docID) {
+      Geometry geo = docs.get(docID);
+      (geo == null ? misses : hits).incrementAndGet();
+      return geo;
+    }
+
+    public void put(int docID, Geometry geo) {
+      if (reserve(this, estimateBytes(geo)) && !docs.compareAndSet(docID, null, geo)) {
+        // another thread cached it first
+        synchronized (GeometryCache.this) {
+          if (!evicted) {
+            long bytes = estimateBytes(geo);
+            ramBytes -= bytes;
+            GeometryCache.this.ramBytes -= bytes;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.distance.DistanceCalculator;
+import com.spatial4j.core.shape.Point;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.operation.distance.DistanceOp;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.DoubleDocValues;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.FieldComparatorSource;
+import org.apache.lucene.search.SortField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Distance from a point to the geometry {@link JtsGeoStrategy} indexed: 0 if
+ * the point is inside, else to the nearest edge.  Optionally the distance is
+ * to the centroid instead.  Distances are in the units of the context's
+ * DistanceCalculator (degrees for geo) times the multiplier.  For geo the
+ * nearest point is found on the sphere by {@link SphericalNearest}, so it is
+ * right across the dateline too.
+ * <p/>
+ * Point geometries are answered from the indexed envelope.  When sorting
+ * ascending, the envelope gives a cheap lower bound, and the exact distance
+ * is only computed for documents that could still be among the top hits.
+ */
+public class GeometryDistanceValueSource extends ValueSource {
+
+  static final Logger log = LoggerFactory.getLogger(GeometryDistanceValueSource.class);
+
+  final String fieldName;
+  final JtsSpatialContext ctx;
+  final Point from;
+  final double multiplier;
+  final boolean centroid;
+  final double nullValue;
+
+  GeometryCache geometryCache;
+  OffHeapGeometryStore offHeapStore;
+
+  public GeometryDistanceValueSource(String fieldName, JtsSpatialContext ctx, Point from, double multiplier, boolean centroid) {
+    this.fieldName = fieldName;
+    this.ctx = ctx;
+    this.from = from;
+    this.multiplier = multiplier;
+    this.centroid = centroid;
+    this.nullValue = (ctx.isGeo() ? 180 * multiplier : Double.MAX_VALUE);
+  }
+
+  /**
+   * @param cache decoded geometries to reuse; null to decode every time
+   */
+  public void setGeometryCache(GeometryCache cache) {
+    this.geometryCache = cache;
+  }
+
+  /**
+   * @param store read geometries from off-heap copies of the segments; null to decode them
+   */
+  public void setOffHeapStore(OffHeapGeometryStore store) {
+    this.offHeapStore = store;
+  }
+
+  @Override
+  public FunctionValues getValues(Map context, AtomicReaderContext readerContext) throws IOException {
+    final Distances distances = new Distances(readerContext.reader());
+    return new DoubleDocValues(this) {
+      @Override
+      public double doubleVal(int doc) {
+        return distances.distance(doc);
+      }
+    };
+  }
+
+  /**
+   * Ascending sorts skip the exact distance of documents whose lower bound
+   * can not beat the current bottom of the queue.
+   */
+  @Override
+  public SortField getSortField(boolean reverse) {
+    return new SortField(description(), new FieldComparatorSource() {
+      @Override
+      public FieldComparator<?> newComparator(String fieldname, int numHits, int sortPos, boolean reversed) {
+        return new DistanceComparator(numHits, reversed);
+      }
+    }, reverse);
+  }
+
+  /**
+   * The great circle distance is never less than the latitude difference,
+   * so the distance to the latitude band of the envelope is a lower bound.
+   */
+  static double lowerBound(Point from, Envelope env) {
+    return Math.max(0, Math.max(env.getMinY() - from.getY(), from.getY() - env.getMaxY()));
+  }
+
+  /**
+   * @return the planar distance to the nearest point of the geometry, 0 if it holds the point
+   */
+  static double distance(DistanceCalculator calc, Point from, Geometry geo) {
+    Geometry pt = geo.getFactory().createPoint(new Coordinate(from.getX(), from.getY()));
+    Coordinate nearest = DistanceOp.nearestPoints(geo, pt)[0];
+    return calc.distance(from, nearest.x, nearest.y);
+  }
+
+  /**
+   * Per segment distance calculations; it keeps decoding state, so it is only
+   * used from one thread.
+   */
+  class Distances {
+    final GeometryDocValues values;
+    final Envelope env = new Envelope();
+    final SphericalNearest nearest;
+
+    // a sort asks for the same document more than once
+    int lastDoc = -1;
+    double lastDistance;
+
+    Distances(AtomicReader reader) throws IOException {
+      this.values = GeometryDocValues.get(reader, fieldName, ctx.getGeometryFactory(),
+          geometryCache, offHeapStore);
+      this.nearest = ctx.isGeo() ? new SphericalNearest(from.getX(), from.getY()) : null;
+    }
+
+    /**
+     * @return a value never greater than {@link #distance(int)}
+     */
+    double lowerBound(int doc) {
+      if (values != null && values.exists(doc) && values.getEnvelope(doc, env)) {
+        return GeometryDistanceValueSource.lowerBound(from, env) * multiplier;
+      }
+      return 0;
+    }
+
+    double distance(int doc) {
+      if (doc != lastDoc) {
+        lastDistance = measure(doc);
+        lastDoc = doc;
+      }
+      return lastDistance;
+    }
+
+    private double measure(int doc) {
+      if (values == null || !values.exists(doc)) {
+        return nullValue;
+      }
+      if (values.getEnvelope(doc, env) && env.getWidth() == 0 && env.getHeight() == 0) {
+        return ctx.getDistCalc().distance(from, env.getMinX(), env.getMinY()) * multiplier;
+      }
+      try {
+        Geometry geo = values.getGeometry(doc);
+        if (geo == null || geo.isEmpty()) {
+          return nullValue;
+        }
+        if (centroid) {
+          com.vividsolutions.jts.geom.Point c = geo.getCentroid();
+          return ctx.getDistCalc().distance(from, c.getX(), c.getY()) * multiplier;
+        }
+        if (nearest != null) {
+          nearest.nearest(geo);
+          return ctx.getDistCalc().distance(from, nearest.getNearestX(), nearest.getNearestY()) * multiplier;
+        }
+        return GeometryDistanceValueSource.distance(ctx.getDistCalc(), from, geo) * multiplier;
+      }
+      catch (ParseException ex) {
+        log.warn("error reading indexed geometry", ex);
+      }
+      return nullValue;
+    }
+  }
+
+  class DistanceComparator extends FieldComparator<Double> {
+    final double[] values;
+    final boolean reversed;
+    double bottom;
+    double top;
+    Distances distances;
+
+    DistanceComparator(int numHits, boolean reversed) {
+      this.values = new double[numHits];
+      this.reversed = reversed;
+    }
+
+    @Override
+    public int compare(int slot1, int slot2) {
+      return Double.compare(values[slot1], values[slot2]);
+    }
+
+    @Override
+    public void setBottom(int slot) {
+      bottom = values[slot];
+    }
+
+    @Override
+    public void setTopValue(Double value) {
+      top = value;
+    }
+
+    @Override
+    public int compareBottom(int doc) {
+      if (!reversed) {
+        double bound = distances.lowerBound(doc);
+        if (bound >= bottom) {
+          return Double.compare(bottom, bound); // not competitive
+        }
+      }
+      return Double.compare(bottom, distances.distance(doc));
+    }
+
+    @Override
+    public int compareTop(int doc) {
+      return Double.compare(top, distances.distance(doc));
+    }
+
+    @Override
+    public void copy(int slot, int doc) {
+      values[slot] = distances.distance(doc);
+    }
+
+    @Override
+    public FieldComparator<Double> setNextReader(AtomicReaderContext context) throws IOException {
+      distances = new Distances(context.reader());
+      return this;
+    }
+
+    @Override
+    public Double value(int slot) {
+      return values[slot];
+    }
+  }
+
+  @Override
+  public String description() {
+    return "distance(" + fieldName + "," + from + (centroid ? ",centroid" : "") + ")";
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    GeometryDistanceValueSource that = (GeometryDistanceValueSource) o;
+    return fieldName.equals(that.fieldName) && from.equals(that.from)
+        && multiplier == that.multiplier && centroid == that.centroid;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = fieldName.hashCode();
+    result = 31 * result + from.hashCode();
+    long temp = Double.doubleToLongBits(multiplier);
+    result = 31 * result + (int) (temp ^ (temp >>> 32));
+    result = 31 * result + (centroid ? 1 : 0);
+    return result;
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.operation.union.UnaryUnionOp;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What {@link JtsGeoStrategy} indexed for one segment: the envelope and the
+ * geometry of each document.  It keeps decoding state, so use it from one
+ * thread.
+ */
+public class GeometryDocValues {
+
+  final BinaryDocValues docValues;
+  final Bits docsWithField;
+
+  // Indexes written before the envelope was added will not have these
+  final NumericDocValues minX;
+  final NumericDocValues maxX;
+  final NumericDocValues minY;
+  final NumericDocValues maxY;
+
+  // optional coarse level of detail
+  final BinaryDocValues lod;
+  final NumericDocValues lodTolerance;
+
+  final BytesRef bytes = new BytesRef();
+  final BytesRef lodBytes = new BytesRef();
+  final GeometryReader geometryReader;
+
+  // optional fragments of large geometries
+  final BinaryDocValues tileEnvelopes;
+  final BinaryDocValues tiles;
+  final BytesRef tileEnvBytes = new BytesRef();
+  final BytesRef tileBytes = new BytesRef();
+  final BytesRef tileGeometry = new BytesRef();
+  final Envelope tileEnv = new Envelope();
+  int[] nearTiles = new int[16];
+  int tileDoc = -1;
+  int loadedTileDoc = -1;
+
+  // optional decoded geometries, shared with other searches
+  final GeometryCache.Segment cached;
+  final OffHeapGeometryStore.Segment offHeap;
+
+  GeometryDocValues(AtomicReader reader, String fieldName, BinaryDocValues docValues, GeometryFactory factory,
+                    GeometryCache cache, OffHeapGeometryStore store) throws IOException {
+    this.docValues = docValues;
+    this.offHeap = (store == null ? null : store.get(reader, fieldName, factory));
+    this.cached = (cache == null || offHeap != null ? null : cache.getSegment(reader, fieldName));
+    this.docsWithField = reader.getDocsWithField(fieldName);
+    NumericDocValues minX = reader.getNumericDocValues(fieldName + JtsGeoStrategy.SUFFIX_MINX);
+    NumericDocValues maxX = reader.getNumericDocValues(fieldName + JtsGeoStrategy.SUFFIX_MAXX);
+    NumericDocValues minY = reader.getNumericDocValues(fieldName + JtsGeoStrategy.SUFFIX_MINY);
+    NumericDocValues maxY = reader.getNumericDocValues(fieldName + JtsGeoStrategy.SUFFIX_MAXY);
+    boolean hasEnvelope = (minX != null && maxX != null && minY != null && maxY != null);
+    this.minX = hasEnvelope ? minX : null;
+    this.maxX = maxX;
+    this.minY = minY;
+    this.maxY = maxY;
+    BinaryDocValues lod = reader.getBinaryDocValues(fieldName + JtsGeoStrategy.SUFFIX_LOD);
+    NumericDocValues lodTolerance = reader.getNumericDocValues(fieldName + JtsGeoStrategy.SUFFIX_LOD_TOLERANCE);
+    this.lod = (lodTolerance != null) ? lod : null;
+    this.lodTolerance = lodTolerance;
+    BinaryDocValues tileEnvelopes = reader.getBinaryDocValues(fieldName + JtsGeoStrategy.SUFFIX_TILE_ENVELOPES);
+    BinaryDocValues tiles = reader.getBinaryDocValues(fieldName + JtsGeoStrategy.SUFFIX_TILES);
+    this.tileEnvelopes = (tiles != null) ? tileEnvelopes : null;
+    this.tiles = tiles;
+    this.geometryReader = new GeometryReader(factory);
+  }
+
+  /**
+   * @return the values for one segment, or null if it has none for the field
+   */
+  public static GeometryDocValues get(AtomicReader reader, String fieldName, GeometryFactory factory) throws IOException {
+    return get(reader, fieldName, factory, null);
+  }
+
+  /**
+   * @param cache decoded geometries are looked up in and added to it; may be null
+   */
+  public static GeometryDocValues get(AtomicReader reader, String fieldName, GeometryFactory factory,
+                                      GeometryCache cache) throws IOException {
+    return get(reader, fieldName, factory, cache, null);
+  }
+
+  /**
+   * @param store if not null, geometries are read from the segment's
+   *              off-heap copy instead; the cache is then not used
+   */
+  public static GeometryDocValues get(AtomicReader reader, String fieldName, GeometryFactory factory,
+                                      GeometryCache cache, OffHeapGeometryStore store) throws IOException {
+    BinaryDocValues docValues = getBinaryDocValues(reader, fieldName);
+    if (docValues == null) {
+      return null;
+    }
+    return new GeometryDocValues(reader, fieldName, docValues, factory, cache, store);
+  }
+
+  /**
+   * Geometry bytes are stored as binary or sorted DocValues depending on
+   * {@link JtsGeoStrategy.Storage}, and this reads whichever the field has.
+   * Lucene keeps one DocValues type per field across the whole index, so
+   * changing the storage needs a new field name or an empty index.
+   */
+  public static BinaryDocValues getBinaryDocValues(AtomicReader reader, String fieldName) throws IOException {
+    BinaryDocValues docValues = reader.getBinaryDocValues(fieldName);
+    if (docValues == null) {
+      docValues = reader.getSortedDocValues(fieldName);
+    }
+    return docValues;
+  }
+
+  /**
+   * @return the per-block envelopes of the values, or null if their format does not keep any
+   */
+  public BlockEnvelopes getBlockEnvelopes() {
+    return (docValues instanceof BlockEnvelopes) ? (BlockEnvelopes) docValues : null;
+  }
+
+  public boolean exists(int docID) {
+    return docsWithField.get(docID);
+  }
+
+  public boolean hasEnvelopes() {
+    return minX != null;
+  }
+
+  /**
+   * @return false if there is no envelope for the document; then the geometry must be read
+   */
+  public boolean getEnvelope(int docID, Envelope env) {
+    if (minX == null) {
+      return false;
+    }
+    double x1 = Double.longBitsToDouble(minX.get(docID));
+    if (Double.isNaN(x1)) {
+      return false;
+    }
+    env.init(x1, Double.longBitsToDouble(maxX.get(docID)),
+        Double.longBitsToDouble(minY.get(docID)), Double.longBitsToDouble(maxY.get(docID)));
+    return true;
+  }
+
+  /**
+   * @return the raw geometry bytes; only valid until the next call
+   */
+  public BytesRef getBytes(int docID) {
+    docValues.get(docID, bytes);
+    return bytes;
+  }
+
+  /**
+   * @return the geometry, or null if the document has none
+   */
+  public Geometry getGeometry(int docID) throws ParseException {
+    if (offHeap != null) {
+      return offHeap.get(docID);
+    }
+    if (cached != null) {
+      Geometry geo = cached.get(docID);
+      if (geo != null) {
+        return geo;
+      }
+    }
+    BytesRef b = getBytes(docID);
+    if (b.length == 0) {
+      return null;
+    }
+    Geometry geo = geometryReader.read(b);
+    if (cached != null) {
+      cached.put(docID, geo);
+    }
+    return geo;
+  }
+
+  /**
+   * Find the document's fragments whose envelope intersects one of near, from
+   * their envelopes alone; {@link #getTile} then decodes them one at a time.
+   *
+   * @param near null for all fragments
+   * @return how many there are, or -1 if the document was not tiled
+   * @see JtsGeoStrategy#setTilePoints(int)
+   */
+  public int readTiles(int docID, Envelope[] near) {
+    tileDoc = -1;
+    if (tileEnvelopes == null) {
+      return -1;
+    }
+    tileEnvelopes.get(docID, tileEnvBytes);
+    int size = GeometryTiler.size(tileEnvBytes);
+    if (size == 0) {
+      return -1;
+    }
+    if (nearTiles.length < size) {
+      nearTiles = new int[ArrayUtil.oversize(size, RamUsageEstimator.NUM_BYTES_INT)];
+    }
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (near != null) {
+        GeometryTiler.readEnvelope(tileEnvBytes, i, tileEnv);
+        if (!GeometryOperationFilter.intersectsAny(near, tileEnv)) {
+          continue;
+        }
+      }
+      nearTiles[count++] = i;
+    }
+    tileDoc = docID;
+    return count;
+  }
+
+  /**
+   * @param i less than what {@link #readTiles} returned
+   * @return the i-th fragment found by the last readTiles
+   */
+  public Geometry getTile(int i) throws ParseException {
+    if (tileDoc != loadedTileDoc) {
+      tiles.get(tileDoc, tileBytes);
+      loadedTileDoc = tileDoc;
+    }
+    GeometryTiler.readFragment(tileEnvBytes, nearTiles[i], tileBytes, tileGeometry);
+    return geometryReader.read(tileGeometry);
+  }
+
+  /**
+   * @return the union of the first count fragments found by {@link #readTiles},
+   *         an empty geometry if there are none
+   */
+  public Geometry getTiles(int count) throws ParseException {
+    if (count == 0) {
+      return geometryReader.getFactory().createGeometryCollection(new Geometry[0]);
+    }
+    List<Geometry> parts = new ArrayList<Geometry>(count);
+    for (int i = 0; i < count; i++) {
+      parts.add(getTile(i));
+    }
+    return parts.size() == 1 ? parts.get(0) : UnaryUnionOp.union(parts);
+  }
+
+  /**
+   * @return the coarse level of detail, or null if the document has none
+   * @see JtsGeoStrategy#setLodPoints(int)
+   */
+  public Geometry getCoarseGeometry(int docID) throws ParseException {
+    if (lod == null) {
+      return null;
+    }
+    lod.get(docID, lodBytes);
+    if (lodBytes.length == 0) {
+      return null;
+    }
+    return geometryReader.read(lodBytes);
+  }
+
+  /**
+   * @return how far the coarse geometry may be from the full one
+   */
+  public double getCoarseTolerance(int docID) {
+    return Double.longBitsToDouble(lodTolerance.get(docID));
+  }
+}
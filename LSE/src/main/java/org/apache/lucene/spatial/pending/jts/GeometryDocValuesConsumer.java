@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+
+/**
+ * Writes binary fields for {@link GeometryDocValuesFormat}.
+ * <pre>
+ *   meta, per field: vint field number, vint maxDoc, vint blockShift, vint blocks,
+ *                    byte 1 if some documents have no value, then vint words, words * long,
+ *                    per block: vlong header pointer,
+ *                               long minX, minY, maxX, maxY (double bits; minX NaN if none)
+ *                    and vint -1 after the last field
+ *   data, per block: the units, each a compressed chunk or one raw value, then the header:
+ *                    per document vint length, vint units,
+ *                    per unit: vint first document &lt;&lt; 1 | 1 if raw,
+ *                              vlong pointer (the first in full, the rest less the previous one)
+ * </pre>
+ */
+class GeometryDocValuesConsumer extends DocValuesConsumer {
+
+  final int blockShift;
+  final int chunkBytes;
+  final DocValuesConsumer delegate;
+  final IndexOutput data;
+  final IndexOutput meta;
+  final int maxDoc;
+  final Compressor compressor = CompressionMode.FAST.newCompressor();
+  final GeometryReader geometryReader = new GeometryReader(new GeometryFactory());
+
+  GeometryDocValuesConsumer(SegmentWriteState state, int blockShift, int chunkBytes,
+                            DocValuesConsumer delegate) throws IOException {
+    this.blockShift = blockShift;
+    this.chunkBytes = chunkBytes;
+    this.delegate = delegate;
+    this.maxDoc = state.segmentInfo.getDocCount();
+    boolean success = false;
+    IndexOutput data = null;
+    IndexOutput meta = null;
+    try {
+      data = state.directory.createOutput(IndexFileNames.segmentFileName(state.segmentInfo.name,
+          state.segmentSuffix, GeometryDocValuesFormat.DATA_EXTENSION), state.context);
+      CodecUtil.writeHeader(data, GeometryDocValuesFormat.DATA_CODEC, GeometryDocValuesFormat.VERSION_CURRENT);
+      meta = state.directory.createOutput(IndexFileNames.segmentFileName(state.segmentInfo.name,
+          state.segmentSuffix, GeometryDocValuesFormat.META_EXTENSION), state.context);
+      CodecUtil.writeHeader(meta, GeometryDocValuesFormat.META_CODEC, GeometryDocValuesFormat.VERSION_CURRENT);
+      success = true;
+    }
+    finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(data, meta, delegate);
+      }
+    }
+    this.data = data;
+    this.meta = meta;
+  }
+
+  @Override
+  public void addNumericField(FieldInfo field, Iterable<Number> values) throws IOException {
+    delegate.addNumericField(field, values);
+  }
+
+  @Override
+  public void addSortedField(FieldInfo field, Iterable<BytesRef> values, Iterable<Number> docToOrd) throws IOException {
+    delegate.addSortedField(field, values, docToOrd);
+  }
+
+  @Override
+  public void addSortedSetField(FieldInfo field, Iterable<BytesRef> values,
+                                Iterable<Number> docToOrdCount, Iterable<Number> ords) throws IOException {
+    delegate.addSortedSetField(field, values, docToOrdCount, ords);
+  }
+
+  @Override
+  public void addBinaryField(FieldInfo field, Iterable<BytesRef> values) throws IOException {
+    int blockSize = 1 << blockShift;
+    int numBlocks = (maxDoc + blockSize - 1) >>> blockShift;
+    long[] pointers = new long[numBlocks];
+    double[] envelopes = new double[numBlocks * 4];
+    FixedBitSet docsWithField = new FixedBitSet(maxDoc);
+
+    Block block = new Block(blockSize);
+    int docID = 0;
+    Envelope blockEnv = new Envelope();
+    Envelope env = new Envelope();
+    for (BytesRef v : values) {
+      int inBlock = docID & (blockSize - 1);
+      if (v != null) {
+        docsWithField.set(docID);
+        block.add(inBlock, v);
+        expand(blockEnv, v, env);
+      }
+      else {
+        block.docLengths[inBlock] = 0;
+      }
+      docID++;
+      if ((docID & (blockSize - 1)) == 0 || docID == maxDoc) {
+        int b = (docID - 1) >>> blockShift;
+        pointers[b] = block.finish(inBlock + 1);
+        if (blockEnv.isNull()) {
+          envelopes[b * 4] = Double.NaN;
+        }
+        else {
+          envelopes[b * 4] = blockEnv.getMinX();
+          envelopes[b * 4 + 1] = blockEnv.getMinY();
+          envelopes[b * 4 + 2] = blockEnv.getMaxX();
+          envelopes[b * 4 + 3] = blockEnv.getMaxY();
+        }
+        blockEnv.setToNull();
+      }
+    }
+
+    meta.writeVInt(field.number);
+    meta.writeVInt(maxDoc);
+    meta.writeVInt(blockShift);
+    meta.writeVInt(numBlocks);
+    if (docsWithField.cardinality() == maxDoc) {
+      meta.writeByte((byte) 0);
+    }
+    else {
+      meta.writeByte((byte) 1);
+      long[] words = docsWithField.getBits();
+      meta.writeVInt(words.length);
+      for (long word : words) {
+        meta.writeLong(word);
+      }
+    }
+    for (int b = 0; b < numBlocks; b++) {
+      meta.writeVLong(pointers[b]);
+      for (int i = 0; i < 4; i++) {
+        meta.writeLong(Double.doubleToLongBits(envelopes[b * 4 + i]));
+      }
+    }
+  }
+
+  /**
+   * The values of one block as they are written: small values are gathered
+   * into a chunk that is compressed once it would grow past chunkBytes, and
+   * a value of chunkBytes or more is written as it is.
+   */
+  private class Block {
+    final int[] docLengths;
+    final int[] unitDocs; // first document of each unit, shifted left, low bit set if raw
+    final long[] unitPointers;
+    int numUnits;
+    byte[] chunk = new byte[1024];
+    int chunkLength;
+    int chunkFirstDoc;
+
+    Block(int blockSize) {
+      docLengths = new int[blockSize];
+      unitDocs = new int[blockSize];
+      unitPointers = new long[blockSize];
+    }
+
+    void add(int inBlock, BytesRef v) throws IOException {
+      docLengths[inBlock] = v.length;
+      if (v.length >= chunkBytes) {
+        flushChunk();
+        unitDocs[numUnits] = (inBlock << 1) | 1;
+        unitPointers[numUnits++] = data.getFilePointer();
+        data.writeBytes(v.bytes, v.offset, v.length);
+        return;
+      }
+      if (chunkLength + v.length > chunkBytes) {
+        flushChunk();
+      }
+      if (chunkLength == 0) {
+        chunkFirstDoc = inBlock;
+      }
+      chunk = ArrayUtil.grow(chunk, chunkLength + v.length);
+      System.arraycopy(v.bytes, v.offset, chunk, chunkLength, v.length);
+      chunkLength += v.length;
+    }
+
+    private void flushChunk() throws IOException {
+      if (chunkLength == 0) {
+        return;
+      }
+      unitDocs[numUnits] = chunkFirstDoc << 1;
+      unitPointers[numUnits++] = data.getFilePointer();
+      compressor.compress(chunk, 0, chunkLength, data);
+      chunkLength = 0;
+    }
+
+    /**
+     * Write the block header after its values
+     *
+     * @return the header's file pointer
+     */
+    long finish(int count) throws IOException {
+      flushChunk();
+      long pointer = data.getFilePointer();
+      for (int i = 0; i < count; i++) {
+        data.writeVInt(docLengths[i]);
+      }
+      data.writeVInt(numUnits);
+      long previous = 0;
+      for (int u = 0; u < numUnits; u++) {
+        data.writeVInt(unitDocs[u]);
+        data.writeVLong(unitPointers[u] - previous);
+        previous = unitPointers[u];
+      }
+      numUnits = 0;
+      return pointer;
+    }
+  }
+
+  /**
+   * Grow the block envelope by the geometry's; if it can not be read the
+   * block can be anywhere
+   */
+  private void expand(Envelope blockEnv, BytesRef v, Envelope env) {
+    if (v.length == 0) {
+      return;
+    }
+    try {
+      geometryReader.readEnvelope(v, env);
+      blockEnv.expandToInclude(env);
+    }
+    catch (ParseException ex) {
+      blockEnv.expandToInclude(new Envelope(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+          Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    boolean success = false;
+    try {
+      meta.writeVInt(-1);
+      CodecUtil.writeFooter(meta);
+      CodecUtil.writeFooter(data);
+      success = true;
+    }
+    finally {
+      if (success) {
+        IOUtils.close(data, meta, delegate);
+      }
+      else {
+        IOUtils.closeWhileHandlingException(data, meta, delegate);
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.codecs.lucene45.Lucene45DocValuesFormat;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+
+import java.io.IOException;
+
+/**
+ * A DocValuesFormat for the binary geometry field of {@link JtsGeoStrategy}
+ * (use {@link JtsGeoStrategy.Storage#BINARY}).  Values are written in blocks
+ * of 2^{@link #DEFAULT_BLOCK_SHIFT} documents:
+ * <ul>
+ *   <li>within a block, values are LZ4 compressed together in chunks of at
+ *   most {@link #DEFAULT_CHUNK_BYTES} uncompressed bytes, so reading one value
+ *   decompresses at most that much.  A chunk is read back into one reused
+ *   buffer, so a scan decompresses it once and makes no BytesRef copies per
+ *   document</li>
+ *   <li>a value of chunkBytes or more is stored uncompressed on its own, and
+ *   read with a single seek</li>
+ *   <li>the envelope of each block's geometries is kept in memory, see
+ *   {@link BlockEnvelopes}, so the filter skips blocks that can not match</li>
+ * </ul>
+ * The data file is read through the Directory's IndexInput, so with
+ * MMapDirectory blocks are decompressed straight from the mapped file.
+ * With {@link JtsGeoStrategy.Encoding#COMPACT} the coordinates are already
+ * delta coded, which leaves LZ4 the repeated structure to squeeze.
+ * <p/>
+ * Numeric, sorted and sorted set fields are handed to {@link Lucene45DocValuesFormat}.
+ * <p/>
+ * It is registered as "{@value #NAME}".  In Solr, set
+ * <code>docValuesFormat="Geometry"</code> on the field type and use the
+ * SchemaCodecFactory.
+ */
+public class GeometryDocValuesFormat extends DocValuesFormat {
+
+  public static final String NAME = "Geometry";
+
+  public static final int DEFAULT_BLOCK_SHIFT = 7;
+  public static final int DEFAULT_CHUNK_BYTES = 1 << 14;
+
+  static final String DATA_CODEC = "GeometryDocValuesData";
+  static final String DATA_EXTENSION = "gdvd";
+  static final String META_CODEC = "GeometryDocValuesMetadata";
+  static final String META_EXTENSION = "gdvm";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  final int blockShift;
+  final int chunkBytes;
+  final DocValuesFormat delegate = new Lucene45DocValuesFormat();
+
+  public GeometryDocValuesFormat() {
+    this(DEFAULT_BLOCK_SHIFT, DEFAULT_CHUNK_BYTES);
+  }
+
+  public GeometryDocValuesFormat(int blockShift, int chunkBytes) {
+    super(NAME);
+    this.blockShift = blockShift;
+    this.chunkBytes = chunkBytes;
+  }
+
+  @Override
+  public DocValuesConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+    return new GeometryDocValuesConsumer(state, blockShift, chunkBytes, delegate.fieldsConsumer(state));
+  }
+
+  @Override
+  public DocValuesProducer fieldsProducer(SegmentReadState state) throws IOException {
+    return new GeometryDocValuesProducer(state, delegate.fieldsProducer(state));
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Envelope;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Decompressor;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads binary fields written by {@link GeometryDocValuesConsumer}.  The
+ * block pointers, envelopes and missing bits are loaded when the segment
+ * opens; a value is read by decompressing the one chunk that holds it, or
+ * straight from the file if it was stored raw.
+ */
+class GeometryDocValuesProducer extends DocValuesProducer {
+
+  final DocValuesProducer delegate;
+  final IndexInput data;
+  final Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+
+  GeometryDocValuesProducer(SegmentReadState state, DocValuesProducer delegate) throws IOException {
+    this.delegate = delegate;
+    String metaName = IndexFileNames.segmentFileName(state.segmentInfo.name,
+        state.segmentSuffix, GeometryDocValuesFormat.META_EXTENSION);
+    ChecksumIndexInput meta = state.directory.openChecksumInput(metaName, state.context);
+    int version;
+    boolean success = false;
+    try {
+      version = CodecUtil.checkHeader(meta, GeometryDocValuesFormat.META_CODEC,
+          GeometryDocValuesFormat.VERSION_START, GeometryDocValuesFormat.VERSION_CURRENT);
+      readFields(meta);
+      CodecUtil.checkFooter(meta);
+      success = true;
+    }
+    finally {
+      if (success) {
+        IOUtils.close(meta);
+      }
+      else {
+        IOUtils.closeWhileHandlingException(meta, delegate);
+      }
+    }
+
+    String dataName = IndexFileNames.segmentFileName(state.segmentInfo.name,
+        state.segmentSuffix, GeometryDocValuesFormat.DATA_EXTENSION);
+    IndexInput data = state.directory.openInput(dataName, state.context);
+    success = false;
+    try {
+      int dataVersion = CodecUtil.checkHeader(data, GeometryDocValuesFormat.DATA_CODEC,
+          GeometryDocValuesFormat.VERSION_START, GeometryDocValuesFormat.VERSION_CURRENT);
+      if (version != dataVersion) {
+        throw new CorruptIndexException("Format versions mismatch: meta=" + version
+            + ", data=" + dataVersion + " (resource=" + data + ")");
+      }
+      success = true;
+    }
+    finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(data, delegate);
+      }
+    }
+    this.data = data;
+  }
+
+  private void readFields(IndexInput meta) throws IOException {
+    int fieldNumber = meta.readVInt();
+    while (fieldNumber != -1) {
+      Entry entry = new Entry();
+      entry.maxDoc = meta.readVInt();
+      entry.blockShift = meta.readVInt();
+      int numBlocks = meta.readVInt();
+      if (meta.readByte() != 0) {
+        long[] words = new long[meta.readVInt()];
+        for (int i = 0; i < words.length; i++) {
+          words[i] = meta.readLong();
+        }
+        entry.docsWithField = new FixedBitSet(words, entry.maxDoc);
+      }
+      entry.pointers = new long[numBlocks];
+      entry.envelopes = new double[numBlocks * 4];
+      for (int block = 0; block < numBlocks; block++) {
+        entry.pointers[block] = meta.readVLong();
+        for (int i = 0; i < 4; i++) {
+          entry.envelopes[block * 4 + i] = Double.longBitsToDouble(meta.readLong());
+        }
+      }
+      entries.put(fieldNumber, entry);
+      fieldNumber = meta.readVInt();
+    }
+  }
+
+  @Override
+  public NumericDocValues getNumeric(FieldInfo field) throws IOException {
+    return delegate.getNumeric(field);
+  }
+
+  @Override
+  public BinaryDocValues getBinary(FieldInfo field) throws IOException {
+    Entry entry = entries.get(field.number);
+    if (entry == null) {
+      return delegate.getBinary(field);
+    }
+    return new BlockBinaryDocValues(entry, data.clone());
+  }
+
+  @Override
+  public SortedDocValues getSorted(FieldInfo field) throws IOException {
+    return delegate.getSorted(field);
+  }
+
+  @Override
+  public SortedSetDocValues getSortedSet(FieldInfo field) throws IOException {
+    return delegate.getSortedSet(field);
+  }
+
+  @Override
+  public Bits getDocsWithField(FieldInfo field) throws IOException {
+    Entry entry = entries.get(field.number);
+    if (entry == null) {
+      return delegate.getDocsWithField(field);
+    }
+    if (entry.docsWithField == null) {
+      return new Bits.MatchAllBits(entry.maxDoc);
+    }
+    return entry.docsWithField;
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    long bytes = delegate.ramBytesUsed();
+    for (Entry entry : entries.values()) {
+      bytes += RamUsageEstimator.sizeOf(entry.pointers)
+          + RamUsageEstimator.sizeOf(entry.envelopes);
+      if (entry.docsWithField != null) {
+        bytes += RamUsageEstimator.sizeOf(entry.docsWithField.getBits());
+      }
+    }
+    return bytes;
+  }
+
+  @Override
+  public void checkIntegrity() throws IOException {
+    delegate.checkIntegrity();
+    CodecUtil.checksumEntireFile(data);
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOUtils.close(data, delegate);
+  }
+
+  static class Entry {
+    int maxDoc;
+    int blockShift;
+    FixedBitSet docsWithField; // null if every document has a value
+    long[] pointers; // of the block headers
+    double[] envelopes;
+  }
+
+  /**
+   * Reads a block's header once, then one unit at a time into a reused
+   * buffer; the BytesRef returned by get points into it.
+   */
+  static class BlockBinaryDocValues extends BinaryDocValues implements BlockEnvelopes {
+    final Entry entry;
+    final IndexInput in;
+    final Decompressor decompressor = CompressionMode.FAST.newDecompressor();
+    final BytesRef buffer = new BytesRef();
+    // per document of the loaded block
+    final int[] docUnits;
+    final int[] docOffsets;
+    final int[] docLengths;
+    // per unit of the loaded block
+    final long[] unitPointers;
+    final int[] unitLengths;
+    final boolean[] unitRaw;
+    int block = -1;
+    int unit = -1;
+
+    BlockBinaryDocValues(Entry entry, IndexInput in) {
+      this.entry = entry;
+      this.in = in;
+      int blockSize = 1 << entry.blockShift;
+      this.docUnits = new int[blockSize];
+      this.docOffsets = new int[blockSize];
+      this.docLengths = new int[blockSize];
+      this.unitPointers = new long[blockSize];
+      this.unitLengths = new int[blockSize];
+      this.unitRaw = new boolean[blockSize];
+    }
+
+    @Override
+    public void get(int docID, BytesRef result) {
+      int i = docID & ((1 << entry.blockShift) - 1);
+      try {
+        int b = docID >>> entry.blockShift;
+        if (b != block) {
+          loadHeader(b);
+        }
+        if (docLengths[i] > 0 && docUnits[i] != unit) {
+          loadUnit(docUnits[i]);
+        }
+      }
+      catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+      result.bytes = buffer.bytes;
+      result.offset = docLengths[i] == 0 ? buffer.offset : buffer.offset + docOffsets[i];
+      result.length = docLengths[i];
+    }
+
+    private void loadHeader(int b) throws IOException {
+      block = -1;
+      unit = -1;
+      int count = Math.min(1 << entry.blockShift, entry.maxDoc - (b << entry.blockShift));
+      in.seek(entry.pointers[b]);
+      for (int i = 0; i < count; i++) {
+        docLengths[i] = in.readVInt();
+      }
+      int numUnits = in.readVInt();
+      long pointer = 0;
+      int u = -1;
+      int offset = 0;
+      int next = numUnits > 0 ? in.readVInt() : Integer.MAX_VALUE;
+      for (int i = 0; i < count; i++) {
+        if (i == next >>> 1) {
+          u++;
+          pointer += in.readVLong();
+          unitPointers[u] = pointer;
+          unitLengths[u] = 0;
+          unitRaw[u] = (next & 1) != 0;
+          offset = 0;
+          next = u + 1 < numUnits ? in.readVInt() : Integer.MAX_VALUE;
+        }
+        docUnits[i] = u;
+        docOffsets[i] = offset;
+        offset += docLengths[i];
+        if (u >= 0) {
+          unitLengths[u] += docLengths[i];
+        }
+      }
+      block = b;
+    }
+
+    private void loadUnit(int u) throws IOException {
+      unit = -1;
+      int length = unitLengths[u];
+      in.seek(unitPointers[u]);
+      if (unitRaw[u]) {
+        buffer.bytes = ArrayUtil.grow(buffer.bytes, length);
+        buffer.offset = 0;
+        in.readBytes(buffer.bytes, 0, length);
+      }
+      else {
+        buffer.bytes = ArrayUtil.grow(buffer.bytes, length);
+        decompressor.decompress(in, length, 0, length, buffer);
+      }
+      buffer.length = length;
+      unit = u;
+    }
+
+    @Override
+    public int getBlockShift() {
+      return entry.blockShift;
+    }
+
+    @Override
+    public boolean getBlockEnvelope(int block, Envelope env) {
+      int i = block * 4;
+      if (Double.isNaN(entry.envelopes[i])) {
+        return false;
+      }
+      env.init(entry.envelopes[i], entry.envelopes[i + 2], entry.envelopes[i + 1], entry.envelopes[i + 3]);
+      return true;
+    }
+  }
+}
@@ -17,21 +17,25 @@
 package org.apache.lucene.spatial.pending.jts;
 
 import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.io.ParseException;
-import com.vividsolutions.jts.io.WKBReader;
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
-import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCacheDocIdSet;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.util.Bits;
-import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.FixedBitSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 public class GeometryOperationFilter extends Filter {
@@ -41,48 +45,468 @@ public class GeometryOperationFilter extends Filter {
   final String fieldName;
   final JtsSpatialContext ctx;
   final GeometryTest tester;
-  final WKBReader wkbReader;
-  final BytesRefStream bstream;
+
+  // optional intra-segment parallelism
+  ForkJoinPool pool;
+  int parallelMinDocs;
+
+  // 0 for exact results
+  double distErr;
+
+  GeometryCache geometryCache;
+
+  EnvelopeIndexCache envelopeIndexes;
+
+  OffHeapGeometryStore offHeapStore;
 
   public GeometryOperationFilter(String fieldName, GeometryTest tester, JtsSpatialContext ctx) {
     this.fieldName = fieldName;
     this.ctx = ctx;
     this.tester = tester;
-    this.wkbReader = new WKBReader(ctx.getGeometryFactory());
+  }
+
+  /**
+   * Iterate segments with at least minDocs documents by splitting the docID
+   * range into chunks that are tested on the pool.  Random access through
+   * {@link DocIdSet#bits()} still tests only the documents asked for.
+   */
+  public void setParallel(ForkJoinPool pool, int minDocs) {
+    this.pool = pool;
+    this.parallelMinDocs = minDocs;
+  }
 
-    BytesRef bytes = new BytesRef(10000);
-    this.bstream = new BytesRefStream(bytes);
+  /**
+   * Allow answers that are wrong for documents near the query boundary, in
+   * exchange for reading less.  Half of distErr is left to the query shape
+   * (see {@link JtsGeoStrategy#makeFilter}); the other half is used here: a
+   * document whose envelope diagonal is within it is tested as its envelope,
+   * and one with a coarse geometry within it is tested as that.  So a
+   * document is only misjudged if the distance between its geometry and the
+   * query's boundary is less than distErr.
+   */
+  public void setApproximate(double distErr) {
+    this.distErr = distErr;
   }
 
+  /**
+   * @param cache decoded geometries to reuse; null to decode every time
+   */
+  public void setGeometryCache(GeometryCache cache) {
+    this.geometryCache = cache;
+  }
+
+  /**
+   * @param store read geometries from off-heap copies of the segments; null to decode them
+   */
+  public void setOffHeapStore(OffHeapGeometryStore store) {
+    this.offHeapStore = store;
+  }
+
+  /**
+   * @param indexes with these, only documents whose envelope can match are
+   *                visited, instead of every document of the segment
+   */
+  public void setEnvelopeIndexes(EnvelopeIndexCache indexes) {
+    this.envelopeIndexes = indexes;
+  }
+
+  /**
+   * With a candidate envelope and values written by
+   * {@link GeometryDocValuesFormat} (or anything else that is
+   * {@link BlockEnvelopes}), the iterator skips whole blocks that can not match.
+   * <p/>
+   * The DocIdSet is lazy: a document is only tested when it is asked for,
+   * either through {@link DocIdSet#bits()} or while iterating.  Combine it
+   * with another query using {@link FilteredQuery#QUERY_FIRST_FILTER_STRATEGY}
+   * (see {@link JtsGeoStrategy#makeFilteredQuery}) so geometries are only read
+   * for documents the query already matched.
+   * <p/>
+   * The filter itself holds no per-search state.  Each call to iterator() or
+   * bits() gets its own {@link DocMatcher}, so the filter and its sets can be
+   * used by concurrent searches, including an IndexSearcher with an executor.
+   */
   @Override
   public DocIdSet getDocIdSet(final AtomicReaderContext context, final Bits acceptDocs) throws IOException {
-    AtomicReader areader = context.reader();
-
-    SortedDocValues sortedDocValues = areader.getSortedDocValues(fieldName);
-    if (sortedDocValues == null)
+    final AtomicReader reader = context.reader();
+    if (GeometryDocValues.getBinaryDocValues(reader, fieldName) == null)
       return null;
 
-    OpenBitSet bits = new OpenBitSet(areader.maxDoc());
+    Envelope[] candidates = wrap(tester.getCandidateEnvelope());
+    if (envelopeIndexes != null && candidates != null) {
+      EnvelopeIndex index = envelopeIndexes.get(reader, fieldName, ctx.getGeometryFactory());
+      if (index != null) {
+        return getDocIdSetIndexed(reader, acceptDocs, index.search(candidates));
+      }
+    }
+
+    final boolean parallel = (pool != null && reader.maxDoc() >= parallelMinDocs);
+    final Envelope[] blockCandidates = candidates;
+    return new DocIdSet() {
+      @Override
+      public DocIdSetIterator iterator() throws IOException {
+        if (parallel) {
+          return matchParallel(reader, acceptDocs).iterator();
+        }
+        if (blockCandidates != null) {
+          DocMatcher matcher = getDocMatcher(reader);
+          BlockEnvelopes blocks = matcher.values.getBlockEnvelopes();
+          if (blocks != null) {
+            return new BlockSkippingIterator(matcher, blocks, blockCandidates, reader.maxDoc(), acceptDocs);
+          }
+        }
+        return newMatchingSet(reader, acceptDocs).iterator();
+      }
 
-    BytesRef bytes = bstream.getBytesRef();
-    for( int docID=0; docID<areader.maxDoc(); docID++ ) {
-      if( acceptDocs == null || acceptDocs.get(docID)) {
-        sortedDocValues.get(docID, bytes);
-        if(bytes.length > 0) {
-          try {
-            bstream.setBytesRef(bytes); // likely the same
-            Geometry geo = wkbReader.read(bstream);
+      @Override
+      public Bits bits() throws IOException {
+        return newMatchingSet(reader, acceptDocs).bits();
+      }
 
-            if (tester.matches(geo)) {
-              bits.set(docID);
+      @Override
+      public boolean isCacheable() {
+        // evaluating it is the expensive part; a cache should hold the result
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Iterate only the candidates; random access still tests any document
+   */
+  private DocIdSet getDocIdSetIndexed(final AtomicReader reader, final Bits acceptDocs, final int[] candidates) {
+    return new DocIdSet() {
+      @Override
+      public DocIdSetIterator iterator() throws IOException {
+        final DocMatcher matcher = getDocMatcher(reader);
+        return new DocIdSetIterator() {
+          int i = -1;
+          int doc = -1;
+
+          @Override
+          public int docID() {
+            return doc;
+          }
+
+          @Override
+          public int nextDoc() {
+            while (++i < candidates.length) {
+              int d = candidates[i];
+              if ((acceptDocs == null || acceptDocs.get(d)) && matcher.matches(d)) {
+                return doc = d;
+              }
             }
+            return doc = NO_MORE_DOCS;
           }
-          catch (ParseException ex) {
-            log.warn("error reading indexed geometry", ex);
+
+          @Override
+          public int advance(int target) {
+            if (i + 1 >= candidates.length) {
+              return doc = NO_MORE_DOCS;
+            }
+            int pos = Arrays.binarySearch(candidates, i + 1, candidates.length, target);
+            i = (pos < 0 ? -pos - 1 : pos) - 1;
+            return nextDoc();
+          }
+
+          @Override
+          public long cost() {
+            return candidates.length;
+          }
+        };
+      }
+
+      @Override
+      public Bits bits() throws IOException {
+        return newMatchingSet(reader, acceptDocs).bits();
+      }
+
+      @Override
+      public boolean isCacheable() {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Geometries crossing the dateline may be kept past -180 or 180 (JTS sees
+   * 170..190, not -170 and 170), so candidate envelopes are looked for 360
+   * degrees east and west as well.
+   *
+   * @return the envelope and its two copies, or null for null
+   */
+  static Envelope[] wrap(Envelope env) {
+    if (env == null) {
+      return null;
+    }
+    return new Envelope[] { env,
+        new Envelope(env.getMinX() - 360, env.getMaxX() - 360, env.getMinY(), env.getMaxY()),
+        new Envelope(env.getMinX() + 360, env.getMaxX() + 360, env.getMinY(), env.getMaxY()) };
+  }
+
+  static boolean intersectsAny(Envelope[] envs, Envelope env) {
+    for (Envelope e : envs) {
+      if (e.intersects(env)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Walks the documents in order, jumping over each block whose envelope
+   * does not intersect the candidate envelope
+   */
+  static class BlockSkippingIterator extends DocIdSetIterator {
+    final DocMatcher matcher;
+    final BlockEnvelopes blocks;
+    final Envelope[] candidates;
+    final int maxDoc;
+    final Bits acceptDocs;
+    final int blockSize;
+    final Envelope blockEnv = new Envelope();
+    int doc = -1;
+
+    BlockSkippingIterator(DocMatcher matcher, BlockEnvelopes blocks, Envelope[] candidates, int maxDoc, Bits acceptDocs) {
+      this.matcher = matcher;
+      this.blocks = blocks;
+      this.candidates = candidates;
+      this.maxDoc = maxDoc;
+      this.acceptDocs = acceptDocs;
+      this.blockSize = 1 << blocks.getBlockShift();
+    }
+
+    @Override
+    public int docID() {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc() {
+      return advance(doc + 1);
+    }
+
+    @Override
+    public int advance(int target) {
+      int d = target;
+      while (d < maxDoc) {
+        if ((d & (blockSize - 1)) == 0 || d == target) {
+          int block = d >>> blocks.getBlockShift();
+          if (!blocks.getBlockEnvelope(block, blockEnv) || !intersectsAny(candidates, blockEnv)) {
+            d = (block + 1) << blocks.getBlockShift();
+            continue;
           }
         }
+        if ((acceptDocs == null || acceptDocs.get(d)) && matcher.matches(d)) {
+          return doc = d;
+        }
+        d++;
+      }
+      return doc = NO_MORE_DOCS;
+    }
+
+    @Override
+    public long cost() {
+      return maxDoc;
+    }
+  }
+
+  /**
+   * @return every matching document of the segment, tested in chunks on the pool
+   */
+  private FixedBitSet matchParallel(AtomicReader reader, Bits acceptDocs) throws IOException {
+    // chunks are multiples of 64 so no two of them set bits in the same word
+    int chunk = Math.max(MIN_PARALLEL_CHUNK, reader.maxDoc() / (pool.getParallelism() * 4));
+    chunk = (chunk + 63) & ~63;
+
+    FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+    try {
+      pool.invoke(new MatchRange(reader, acceptDocs, bits, 0, reader.maxDoc(), chunk));
+    }
+    catch (RuntimeException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
       }
+      throw ex;
     }
     return bits;
   }
+
+  static final int MIN_PARALLEL_CHUNK = 1024;
+
+  /**
+   * Splits a docID range until it is no bigger than a chunk, then tests it
+   * with its own DocMatcher.
+   */
+  class MatchRange extends RecursiveAction {
+    final AtomicReader reader;
+    final Bits acceptDocs;
+    final FixedBitSet bits;
+    final int start;
+    final int end;
+    final int chunk;
+
+    MatchRange(AtomicReader reader, Bits acceptDocs, FixedBitSet bits, int start, int end, int chunk) {
+      this.reader = reader;
+      this.acceptDocs = acceptDocs;
+      this.bits = bits;
+      this.start = start;
+      this.end = end;
+      this.chunk = chunk;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start > chunk) {
+        int mid = start + ((((end - start) / 2) + 63) & ~63);
+        invokeAll(new MatchRange(reader, acceptDocs, bits, start, mid, chunk),
+            new MatchRange(reader, acceptDocs, bits, mid, end, chunk));
+        return;
+      }
+      try {
+        DocMatcher matcher = getDocMatcher(reader);
+        for (int docID = start; docID < end; docID++) {
+          if ((acceptDocs == null || acceptDocs.get(docID)) && matcher.matches(docID)) {
+            bits.set(docID);
+          }
+        }
+      }
+      catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  private DocIdSet newMatchingSet(AtomicReader reader, Bits acceptDocs) throws IOException {
+    final DocMatcher matcher = getDocMatcher(reader);
+    return new FieldCacheDocIdSet(reader.maxDoc(), acceptDocs) {
+      @Override
+      protected boolean matchDoc(int doc) {
+        return matcher.matches(doc);
+      }
+    };
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    GeometryOperationFilter that = (GeometryOperationFilter) o;
+    return fieldName.equals(that.fieldName) && tester.equals(that.tester) && distErr == that.distErr;
+  }
+
+  @Override
+  public int hashCode() {
+    long temp = Double.doubleToLongBits(distErr);
+    return 31 * (31 * fieldName.hashCode() + tester.hashCode()) + (int) (temp ^ (temp >>> 32));
+  }
+
+  /**
+   * @return a matcher for one segment, or null if it has no values for the field
+   */
+  public DocMatcher getDocMatcher(AtomicReader areader) throws IOException {
+    GeometryDocValues values = GeometryDocValues.get(areader, fieldName, ctx.getGeometryFactory(),
+        geometryCache, offHeapStore);
+    if (values == null)
+      return null;
+    return new DocMatcher(values);
+  }
+
+  /**
+   * Tests single documents of one segment, in any order.  Deleted documents
+   * are not checked here.  It holds decoding state, so use it from one thread.
+   */
+  public class DocMatcher {
+    final GeometryDocValues values;
+    final Envelope env = new Envelope();
+    final Envelope[] local = wrap(tester.getLocalEnvelope());
+
+    DocMatcher(GeometryDocValues values) {
+      this.values = values;
+    }
+
+    public boolean matches(int docID) {
+      if (!values.exists(docID)) {
+        return false;
+      }
+      boolean hasEnvelope = values.getEnvelope(docID, env);
+      if (hasEnvelope) {
+        Boolean match = tester.matchesEnvelope(env);
+        if (match != null) {
+          return match;
+        }
+      }
+      try {
+        if (distErr > 0) {
+          Geometry approx = getApproximation(docID, hasEnvelope);
+          if (approx != null) {
+            return tester.matches(approx);
+          }
+        }
+        Geometry coarse = values.getCoarseGeometry(docID);
+        if (coarse != null) {
+          Boolean match = tester.matchesCoarse(coarse, values.getCoarseTolerance(docID));
+          if (match != null) {
+            return match;
+          }
+        }
+        Boolean match = matchesTiles(docID);
+        if (match != null) {
+          return match;
+        }
+        Geometry geo = values.getGeometry(docID);
+        return geo != null && tester.matches(geo);
+      }
+      catch (ParseException ex) {
+        log.warn("error reading indexed geometry", ex);
+      }
+      return false;
+    }
+
+    /**
+     * Test the fragments near the query one at a time where the test allows,
+     * so only the fragments up to the first deciding one are decoded.
+     *
+     * @return the match, or null if the document was not tiled
+     */
+    private Boolean matchesTiles(int docID) throws ParseException {
+      int count = values.readTiles(docID, local);
+      if (count < 0) {
+        return null;
+      }
+      switch (tester.getFragments()) {
+        case ANY:
+          for (int i = 0; i < count; i++) {
+            if (tester.matches(values.getTile(i))) {
+              return Boolean.TRUE;
+            }
+          }
+          return Boolean.FALSE;
+        case ALL:
+          for (int i = 0; i < count; i++) {
+            if (!tester.matches(values.getTile(i))) {
+              return Boolean.FALSE;
+            }
+          }
+          return Boolean.TRUE;
+        default:
+          return tester.matches(values.getTiles(count));
+      }
+    }
+
+    /**
+     * @return something within distErr/2 of the document's geometry that is
+     *         cheaper to test, or null if there is nothing like that
+     */
+    private Geometry getApproximation(int docID, boolean hasEnvelope) throws ParseException {
+      double budget = distErr / 2;
+      if (hasEnvelope && Math.hypot(env.getWidth(), env.getHeight()) <= budget) {
+        return ctx.getGeometryFactory().toGeometry(env);
+      }
+      Geometry coarse = values.getCoarseGeometry(docID);
+      if (coarse != null && values.getCoarseTolerance(docID) <= budget) {
+        return coarse;
+      }
+      return null;
+    }
+  }
 }
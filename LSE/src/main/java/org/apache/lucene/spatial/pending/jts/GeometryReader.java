@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Reads geometry bytes in any {@link JtsGeoStrategy.Encoding}; the first byte
+ * tells them apart, so a field may mix segments written with either.
+ * <p/>
+ * It keeps the read position, so use one instance per thread.
+ */
+public class GeometryReader {
+
+  final GeometryFactory factory;
+  final BytesRefWKBReader wkbReader;
+  final CompactGeometryReader compactReader;
+
+  public GeometryReader(GeometryFactory factory) {
+    this.factory = factory;
+    this.wkbReader = new BytesRefWKBReader(factory);
+    this.compactReader = new CompactGeometryReader(factory);
+  }
+
+  public GeometryFactory getFactory() {
+    return factory;
+  }
+
+  public Geometry read(BytesRef bytes) throws ParseException {
+    if (CompactGeometryReader.isCompact(bytes)) {
+      return compactReader.read(bytes);
+    }
+    return wkbReader.read(bytes);
+  }
+
+  /**
+   * Set env to the envelope of the geometry; compact bytes only need their
+   * header read.  An empty compact geometry gives a 0 size envelope at 0,0.
+   */
+  public void readEnvelope(BytesRef bytes, Envelope env) throws ParseException {
+    if (CompactGeometryReader.isCompact(bytes)) {
+      compactReader.readEnvelope(bytes, env);
+    }
+    else {
+      env.init(wkbReader.read(bytes).getEnvelopeInternal());
+    }
+  }
+}
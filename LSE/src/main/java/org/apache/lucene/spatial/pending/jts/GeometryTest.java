@@ -16,10 +16,62 @@
  */
 package org.apache.lucene.spatial.pending.jts;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 
 public interface GeometryTest {
 
   public boolean matches(Geometry geo);
+
+  /**
+   * Try to decide the match knowing only the envelope of the indexed geometry.
+   *
+   * @return TRUE or FALSE if the envelope is enough, or null if the geometry
+   *         itself needs to be tested
+   */
+  public Boolean matchesEnvelope(Envelope env);
+
+  /**
+   * Try to decide the match from a simplified version of the indexed geometry.
+   * Every vertex of the coarse geometry is a vertex of the indexed one, and no
+   * point of either is further than the tolerance from the other.
+   *
+   * @return TRUE or FALSE if the coarse geometry is enough, or null if the
+   *         geometry itself needs to be tested
+   */
+  public Boolean matchesCoarse(Geometry coarse, double tolerance);
+
+  /**
+   * @return an envelope that the envelope of every matching geometry
+   *         intersects, or null if matches can be anywhere; the filter
+   *         also takes its copies 360 degrees east and west, for geometries
+   *         kept past the dateline (see {@link GeometryOperationFilter#wrap})
+   */
+  public Envelope getCandidateEnvelope();
+
+  /**
+   * @return an envelope such that testing only the part of the indexed
+   *         geometry near it, or near its copies 360 degrees east and west,
+   *         gives the same answer, or null if the whole geometry is needed;
+   *         see {@link GeometryTiler}
+   */
+  public Envelope getLocalEnvelope();
+
+  /**
+   * @return how the fragments of a tiled geometry near {@link #getLocalEnvelope} decide the match
+   */
+  public Fragments getFragments();
+
+  /**
+   * How a tiled geometry is tested from its fragments
+   */
+  public enum Fragments {
+    /** it matches if one fragment matches */
+    ANY,
+    /** it matches if every fragment matches */
+    ALL,
+    /** the union of the fragments is tested */
+    UNION
+  }
 }
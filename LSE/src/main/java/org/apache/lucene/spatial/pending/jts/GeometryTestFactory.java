@@ -16,92 +16,354 @@
  */
 package org.apache.lucene.spatial.pending.jts;
 
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.shape.Circle;
 import org.apache.lucene.spatial.query.SpatialOperation;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 
 
 public class GeometryTestFactory {
 
   public static GeometryTest get(SpatialOperation op, Geometry geo) {
+    return get(op, geo, null);
+  }
+
+  /**
+   * @param ctx if not null, large areal query shapes get a {@link QueryGrid}
+   *            so documents well inside or outside them are decided by envelope
+   */
+  public static GeometryTest get(SpatialOperation op, Geometry geo, SpatialContext ctx) {
 
     if( op == SpatialOperation.BBoxIntersects )
-      return new BBoxIntersectsTester(geo);
+      return new BBoxIntersectsTester(geo, ctx);
 
     if( op == SpatialOperation.BBoxWithin )
-      return new BBoxWithinTester(geo);
+      return new BBoxWithinTester(geo, ctx);
 
     if( op == SpatialOperation.Contains )
-      return new ContainsTester(geo);
+      return new ContainsTester(geo, ctx);
 
     if( op == SpatialOperation.Intersects )
-      return new IntersectsTester(geo);
+      return new IntersectsTester(geo, ctx);
 
     if( op == SpatialOperation.IsEqualTo )
       return new IsEqualToTester(geo);
 
     if( op == SpatialOperation.IsDisjointTo )
-      return new IsDisjointToTester(geo);
+      return new IsDisjointToTester(geo, ctx);
 
     if( op == SpatialOperation.IsWithin )
-      return new IsWithinTester(geo);
+      return new IsWithinTester(geo, ctx);
 
     if( op == SpatialOperation.Overlaps )
-      return new OverlapsTester(geo);
+      return new OverlapsTester(geo, ctx);
 
     throw new org.apache.lucene.spatial.query.UnsupportedSpatialOperation(op);
   }
 
+  /**
+   * @return a {@link GeodesicCircleTester} if the context is geo and the
+   *         operation can be answered with distances, else null; then the
+   *         circle has to be tested as a polygon
+   */
+  public static GeometryTest getCircle(SpatialOperation op, Circle circle, SpatialContext ctx) {
+    if (!ctx.isGeo()) {
+      return null;
+    }
+    if( op == SpatialOperation.Intersects )
+      return new GeodesicCircleTester(circle, false);
+
+    if( op == SpatialOperation.IsDisjointTo )
+      return new GeodesicCircleTester(circle, true);
+
+    return null;
+  }
+
   private abstract static class BaseTester implements GeometryTest {
-    protected Geometry queryGeo;
+    protected final Geometry queryGeo;
+    protected final Envelope queryEnv;
 
     public BaseTester(Geometry geo) {
       this.queryGeo = geo;
+      this.queryEnv = geo.getEnvelopeInternal();
+    }
+
+    @Override
+    public Boolean matchesEnvelope(Envelope env) {
+      return null;
+    }
+
+    @Override
+    public Boolean matchesCoarse(Geometry coarse, double tolerance) {
+      return null;
+    }
+
+    @Override
+    public Envelope getCandidateEnvelope() {
+      return queryEnv;
+    }
+
+    @Override
+    public Envelope getLocalEnvelope() {
+      return null;
+    }
+
+    @Override
+    public Fragments getFragments() {
+      return Fragments.UNION;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      return queryGeo.equalsExact(((BaseTester) o).queryGeo);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * getClass().hashCode() + queryEnv.hashCode();
     }
   }
 
-  public static class BBoxIntersectsTester extends BaseTester {
-    public BBoxIntersectsTester(Geometry geo) {
+  /**
+   * Prepares the query geometry so its topology and edge index are reused for
+   * every document instead of rebuilt per test.  A PreparedGeometry keeps
+   * intersection state while it is tested, so each thread gets its own and
+   * one tester can be used by concurrent searches without locking.
+   */
+  private abstract static class PreparedTester extends BaseTester {
+    // smaller query shapes are quick enough to test against each envelope
+    static final int GRID_MIN_POINTS = 64;
+    static final int GRID_MAX_LEVELS = 12;
+    static final int GRID_MAX_CELLS = 1024;
+
+    // A tester is shared by searches and may sit in the filter cache, so
+    // nothing knows when it is done and could close a CloseableThreadLocal.
+    // A plain ThreadLocal's entries go stale with the tester, and each
+    // thread's map drops them as it is used.
+    private final ThreadLocal<PreparedGeometry> preparedGeo = new ThreadLocal<PreparedGeometry>() {
+      @Override
+      protected PreparedGeometry initialValue() {
+        return PreparedGeometryFactory.prepare(queryGeo);
+      }
+    };
+
+    private final boolean gridded;
+    private volatile QueryGrid grid;
+
+    public PreparedTester(Geometry geo, SpatialContext ctx) {
       super(geo);
+      this.gridded = (ctx != null && geo.getDimension() == 2 && geo.getNumPoints() >= GRID_MIN_POINTS);
+    }
+
+    protected PreparedGeometry prepared() {
+      return preparedGeo.get();
+    }
+
+    /**
+     * @return the grid, built on first use, or null if the query shape does not get one
+     */
+    protected QueryGrid grid() {
+      if (!gridded) {
+        return null;
+      }
+      QueryGrid g = grid;
+      if (g == null) {
+        synchronized (this) {
+          g = grid;
+          if (g == null) {
+            grid = g = new QueryGrid(prepared(), GRID_MAX_LEVELS, GRID_MAX_CELLS);
+          }
+        }
+      }
+      return g;
+    }
+
+    /**
+     * Only an area can hold another geometry in its interior
+     */
+    protected boolean interiorContains(Envelope env) {
+      if (queryGeo.getDimension() != 2) {
+        return false;
+      }
+      QueryGrid g = grid();
+      if (g != null) {
+        int state = g.classify(env);
+        if (state != QueryGrid.BOUNDARY) {
+          return state == QueryGrid.INSIDE;
+        }
+      }
+      return prepared().containsProperly(queryGeo.getFactory().toGeometry(env));
+    }
+
+    /**
+     * @return true if the grid puts the envelope outside the query shape;
+     *         false means it may or may not be
+     */
+    protected boolean exteriorContains(Envelope env) {
+      QueryGrid g = grid();
+      return g != null && g.classify(env) == QueryGrid.OUTSIDE;
+    }
+
+    /**
+     * The vertices of a coarse geometry are points of the indexed geometry
+     */
+    protected boolean intersectsVertices(Geometry coarse) {
+      return prepared().intersects(coarse.getFactory().createMultiPoint(coarse.getCoordinates()));
+    }
+
+    /**
+     * @return false only if the coarse geometry is further than the tolerance
+     *         from the query shape.  The prepared query is tested against the
+     *         coarse geometry grown by the tolerance, so the cost follows the
+     *         size of the coarse geometry rather than the query's.
+     */
+    protected boolean isWithinDistance(Geometry coarse, double tolerance) {
+      Envelope env = new Envelope(coarse.getEnvelopeInternal());
+      env.expandBy(tolerance);
+      if (!env.intersects(queryEnv) || exteriorContains(env)) {
+        return false;
+      }
+      Geometry grown = grow(coarse, tolerance);
+      return grown == null || prepared().intersects(grown);
+    }
+  }
+
+  static final int GROW_QUAD_SEGMENTS = 4;
+  // buffer arcs are chords, and buffering simplifies its input by 1% of the distance
+  static final double GROW_FACTOR = 1.02 / Math.cos(Math.PI / (4 * GROW_QUAD_SEGMENTS));
+
+  /**
+   * @return a geometry covering every point within the tolerance of the
+   *         coarse one, or null if JTS can not buffer it
+   */
+  static Geometry grow(Geometry coarse, double tolerance) {
+    if (tolerance <= 0) {
+      return coarse;
+    }
+    try {
+      return coarse.buffer(tolerance * GROW_FACTOR, GROW_QUAD_SEGMENTS);
+    }
+    catch (TopologyException ex) {
+      return null;
+    }
+  }
+
+  public static class BBoxIntersectsTester extends PreparedTester {
+    public BBoxIntersectsTester(Geometry geo, SpatialContext ctx) {
+      super(geo, ctx);
     }
 
     @Override
     public boolean matches(Geometry geo) {
-      return geo.getEnvelope().intersects(queryGeo);
+      return prepared().intersects(geo.getEnvelope());
+    }
+
+    @Override
+    public Boolean matchesEnvelope(Envelope env) {
+      if (!env.intersects(queryEnv)) {
+        return Boolean.FALSE;
+      }
+      return prepared().intersects(queryGeo.getFactory().toGeometry(env));
     }
   }
 
-  public static class BBoxWithinTester extends BaseTester {
-    public BBoxWithinTester(Geometry geo) {
-      super(geo);
+  public static class BBoxWithinTester extends PreparedTester {
+    public BBoxWithinTester(Geometry geo, SpatialContext ctx) {
+      super(geo, ctx);
     }
 
     @Override
     public boolean matches(Geometry geo) {
-      return geo.getEnvelope().within(queryGeo);
+      return prepared().contains(geo.getEnvelope());
+    }
+
+    @Override
+    public Boolean matchesEnvelope(Envelope env) {
+      if (!queryEnv.covers(env)) {
+        return Boolean.FALSE;
+      }
+      return prepared().contains(queryGeo.getFactory().toGeometry(env));
     }
   }
 
-  public static class ContainsTester extends BaseTester {
-    public ContainsTester(Geometry geo) {
-      super(geo);
+  public static class ContainsTester extends PreparedTester {
+    private final Geometry queryEnvGeo;
+
+    public ContainsTester(Geometry geo, SpatialContext ctx) {
+      super(geo, ctx);
+      this.queryEnvGeo = geo.getFactory().toGeometry(queryEnv);
+    }
+
+    @Override
+    public Envelope getLocalEnvelope() {
+      return queryEnv;
     }
 
     @Override
     public boolean matches(Geometry geo) {
-      return geo.contains(queryGeo);
+      return prepared().within(geo);
+    }
+
+    @Override
+    public Boolean matchesEnvelope(Envelope env) {
+      return env.covers(queryEnv) ? null : Boolean.FALSE;
+    }
+
+    @Override
+    public Boolean matchesCoarse(Geometry coarse, double tolerance) {
+      // the query is inside the coarse geometry, and further than the tolerance
+      // from its edge; its envelope stands in for it, so a large query costs
+      // no more than a small one
+      if (coarse.getDimension() == 2 && coarse.contains(queryEnvGeo)
+          && !queryEnvGeo.isWithinDistance(coarse.getBoundary(), tolerance)) {
+        return Boolean.TRUE;
+      }
+      return null;
     }
   }
 
-  public static class IntersectsTester extends BaseTester {
-    public IntersectsTester(Geometry geo) {
-      super(geo);
+  public static class IntersectsTester extends PreparedTester {
+    public IntersectsTester(Geometry geo, SpatialContext ctx) {
+      super(geo, ctx);
+    }
+
+    @Override
+    public Envelope getLocalEnvelope() {
+      return queryEnv;
+    }
+
+    @Override
+    public Fragments getFragments() {
+      return Fragments.ANY;
     }
 
     @Override
     public boolean matches(Geometry geo) {
-      return geo.intersects(queryGeo);
+      return prepared().intersects(geo);
+    }
+
+    @Override
+    public Boolean matchesEnvelope(Envelope env) {
+      if (!env.intersects(queryEnv) || exteriorContains(env)) {
+        return Boolean.FALSE;
+      }
+      return interiorContains(env) ? Boolean.TRUE : null;
+    }
+
+    @Override
+    public Boolean matchesCoarse(Geometry coarse, double tolerance) {
+      if (!isWithinDistance(coarse, tolerance)) {
+        return Boolean.FALSE;
+      }
+      return intersectsVertices(coarse) ? Boolean.TRUE : null;
     }
   }
 
@@ -114,38 +376,106 @@ public class GeometryTestFactory {
     public boolean matches(Geometry geo) {
       return geo.equals(queryGeo);
     }
+
+    @Override
+    public Boolean matchesEnvelope(Envelope env) {
+      return env.equals(queryEnv) ? null : Boolean.FALSE;
+    }
   }
 
-  public static class IsDisjointToTester extends BaseTester {
-    public IsDisjointToTester(Geometry geo) {
-      super(geo);
+  public static class IsDisjointToTester extends PreparedTester {
+    public IsDisjointToTester(Geometry geo, SpatialContext ctx) {
+      super(geo, ctx);
+    }
+
+    @Override
+    public Envelope getLocalEnvelope() {
+      return queryEnv;
+    }
+
+    @Override
+    public Fragments getFragments() {
+      return Fragments.ALL;
     }
 
     @Override
     public boolean matches(Geometry geo) {
-      return geo.disjoint(queryGeo);
+      return prepared().disjoint(geo);
+    }
+
+    @Override
+    public Envelope getCandidateEnvelope() {
+      return null;
+    }
+
+    @Override
+    public Boolean matchesEnvelope(Envelope env) {
+      if (!env.intersects(queryEnv) || exteriorContains(env)) {
+        return Boolean.TRUE;
+      }
+      return interiorContains(env) ? Boolean.FALSE : null;
+    }
+
+    @Override
+    public Boolean matchesCoarse(Geometry coarse, double tolerance) {
+      if (!isWithinDistance(coarse, tolerance)) {
+        return Boolean.TRUE;
+      }
+      return intersectsVertices(coarse) ? Boolean.FALSE : null;
     }
   }
 
-  public static class IsWithinTester extends BaseTester {
-    public IsWithinTester(Geometry geo) {
-      super(geo);
+  public static class IsWithinTester extends PreparedTester {
+    public IsWithinTester(Geometry geo, SpatialContext ctx) {
+      super(geo, ctx);
     }
 
     @Override
     public boolean matches(Geometry geo) {
-      return geo.within(queryGeo);
+      return prepared().contains(geo);
+    }
+
+    @Override
+    public Boolean matchesEnvelope(Envelope env) {
+      if (!queryEnv.covers(env) || exteriorContains(env)) {
+        return Boolean.FALSE;
+      }
+      return interiorContains(env) ? Boolean.TRUE : null;
+    }
+
+    @Override
+    public Boolean matchesCoarse(Geometry coarse, double tolerance) {
+      if (!prepared().covers(coarse.getFactory().createMultiPoint(coarse.getCoordinates()))) {
+        return Boolean.FALSE; // some vertex is outside
+      }
+      // inside the query, and further than the tolerance from its edge
+      if (queryGeo.getDimension() == 2) {
+        Geometry grown = grow(coarse, tolerance);
+        if (grown != null && prepared().containsProperly(grown)) {
+          return Boolean.TRUE;
+        }
+      }
+      return null;
     }
   }
 
-  public static class OverlapsTester extends BaseTester {
-    public OverlapsTester(Geometry geo) {
-      super(geo);
+  public static class OverlapsTester extends PreparedTester {
+    public OverlapsTester(Geometry geo, SpatialContext ctx) {
+      super(geo, ctx);
     }
 
     @Override
     public boolean matches(Geometry geo) {
-      return geo.overlaps(queryGeo);
+      return prepared().overlaps(geo);
+    }
+
+    @Override
+    public Boolean matchesEnvelope(Envelope env) {
+      // nothing inside the query shape's interior can overlap it
+      if (!env.intersects(queryEnv) || exteriorContains(env) || interiorContains(env)) {
+        return Boolean.FALSE;
+      }
+      return null;
     }
   }
 }
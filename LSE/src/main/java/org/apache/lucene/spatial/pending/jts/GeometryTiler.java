@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.TopologyException;
+import org.apache.lucene.util.BytesRef;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Clips a large geometry into fragments along a quad grid over the world
+ * bounds, so a query only needs to decode and test the fragments near it.
+ * A cell is split into quadrants until the part of the geometry in it has at
+ * most maxPoints vertices and encodes to at most maxBytes.  The union of the
+ * fragments is the geometry; neighbouring fragments share the cell edge
+ * between them.
+ * <p/>
+ * A document's fragments are stored in two values, so their envelopes can be
+ * read without the fragments:
+ * <pre>
+ *   envelopes, per fragment: double minX, minY, maxX, maxY, int end offset (big endian)
+ *   fragments: the encoded fragments, one after the other
+ * </pre>
+ */
+public class GeometryTiler {
+
+  /** bytes per fragment in the envelopes value */
+  public static final int ENTRY_BYTES = 36;
+
+  /** cells are never smaller than the world bounds / 2^MAX_DEPTH */
+  static final int MAX_DEPTH = 24;
+
+  final Envelope world;
+  final int maxPoints;
+  final int maxBytes;
+  final SizeTargetedSimplifier.Sizer sizer;
+
+  /**
+   * @param sizer the encoded size of a fragment, held to maxBytes
+   */
+  public GeometryTiler(Envelope world, int maxPoints, int maxBytes, SizeTargetedSimplifier.Sizer sizer) {
+    this.world = world;
+    this.maxPoints = maxPoints;
+    this.maxBytes = maxBytes;
+    this.sizer = sizer;
+  }
+
+  /**
+   * @return the fragments
+   * @throws TopologyException if the geometry can not be clipped
+   */
+  public List<Geometry> tile(Geometry geo) {
+    Envelope cell = new Envelope(world);
+    cell.expandToInclude(geo.getEnvelopeInternal());
+    List<Geometry> fragments = new ArrayList<Geometry>();
+    tile(geo, cell, 0, fragments);
+    return fragments;
+  }
+
+  private void tile(Geometry geo, Envelope cell, int depth, List<Geometry> fragments) {
+    if (geo.isEmpty()) {
+      return;
+    }
+    if (depth >= MAX_DEPTH
+        || (geo.getNumPoints() <= maxPoints && sizer.sizeOf(geo) <= maxBytes)) {
+      fragments.add(geo);
+      return;
+    }
+    Envelope env = geo.getEnvelopeInternal();
+    double midX = (cell.getMinX() + cell.getMaxX()) / 2;
+    double midY = (cell.getMinY() + cell.getMaxY()) / 2;
+    Envelope[] quadrants = {
+        new Envelope(cell.getMinX(), midX, cell.getMinY(), midY),
+        new Envelope(midX, cell.getMaxX(), cell.getMinY(), midY),
+        new Envelope(cell.getMinX(), midX, midY, cell.getMaxY()),
+        new Envelope(midX, cell.getMaxX(), midY, cell.getMaxY())
+    };
+    for (Envelope quadrant : quadrants) {
+      if (quadrant.covers(env)) {
+        // no need to clip until the geometry spans more than one cell
+        tile(geo, quadrant, depth + 1, fragments);
+        return;
+      }
+    }
+    for (Envelope quadrant : quadrants) {
+      if (quadrant.intersects(env)) {
+        tile(clip(geo, quadrant), quadrant, depth + 1, fragments);
+      }
+    }
+  }
+
+  /**
+   * @return the part of the geometry in the cell, without the lower
+   *         dimensional slivers the intersection leaves along the cell edges
+   */
+  static Geometry clip(Geometry geo, Envelope cell) {
+    Geometry part = geo.intersection(geo.getFactory().toGeometry(cell));
+    if (part.getNumGeometries() < 2 || part.getDimension() == 0) {
+      return part;
+    }
+    List<Geometry> keep = new ArrayList<Geometry>(part.getNumGeometries());
+    for (int i = 0; i < part.getNumGeometries(); i++) {
+      Geometry g = part.getGeometryN(i);
+      if (g.getDimension() == part.getDimension()) {
+        keep.add(g);
+      }
+    }
+    return geo.getFactory().buildGeometry(keep);
+  }
+
+  /**
+   * @return the envelopes value for the fragments
+   */
+  public static BytesRef toEnvelopes(List<Envelope> envs, List<BytesRef> encoded) {
+    ByteBuffer buf = ByteBuffer.allocate(ENTRY_BYTES * envs.size());
+    int end = 0;
+    for (int i = 0; i < envs.size(); i++) {
+      Envelope env = envs.get(i);
+      end += encoded.get(i).length;
+      buf.putDouble(env.getMinX()).putDouble(env.getMinY()).putDouble(env.getMaxX()).putDouble(env.getMaxY());
+      buf.putInt(end);
+    }
+    return new BytesRef(buf.array());
+  }
+
+  /**
+   * @return the fragments value
+   */
+  public static BytesRef toFragments(List<BytesRef> encoded) {
+    int length = 0;
+    for (BytesRef b : encoded) {
+      length += b.length;
+    }
+    BytesRef bytes = new BytesRef(length);
+    for (BytesRef b : encoded) {
+      System.arraycopy(b.bytes, b.offset, bytes.bytes, bytes.length, b.length);
+      bytes.length += b.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the number of fragments in an envelopes value
+   */
+  public static int size(BytesRef envelopes) {
+    return envelopes.length / ENTRY_BYTES;
+  }
+
+  public static void readEnvelope(BytesRef envelopes, int i, Envelope env) {
+    ByteBuffer buf = ByteBuffer.wrap(envelopes.bytes, envelopes.offset + i * ENTRY_BYTES, ENTRY_BYTES);
+    double minX = buf.getDouble();
+    double minY = buf.getDouble();
+    env.init(minX, buf.getDouble(), minY, buf.getDouble());
+  }
+
+  /**
+   * Point fragment at the i-th encoded fragment of the fragments value
+   */
+  public static void readFragment(BytesRef envelopes, int i, BytesRef fragments, BytesRef fragment) {
+    int start = (i == 0) ? 0 : end(envelopes, i - 1);
+    fragment.bytes = fragments.bytes;
+    fragment.offset = fragments.offset + start;
+    fragment.length = end(envelopes, i) - start;
+  }
+
+  private static int end(BytesRef envelopes, int i) {
+    return ByteBuffer.wrap(envelopes.bytes).getInt(envelopes.offset + (i + 1) * ENTRY_BYTES - 4);
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.shape.Shape;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredDocIdSetIterator;
+import org.apache.lucene.spatial.prefix.RecursivePrefixTreeStrategy;
+import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTree;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+
+/**
+ * Indexes each shape twice: as prefix tree cells with a
+ * {@link RecursivePrefixTreeStrategy} and as the exact geometry of
+ * {@link JtsGeoStrategy}.  A query asks the prefix tree for candidates, which
+ * costs about as much as a grid query, and then only tests those against the
+ * exact geometry.
+ * <p/>
+ * The prefix tree covers every shape with cells, so the candidates of an
+ * Intersects query are a superset of the exact matches.  Every operation
+ * whose matches intersect the query shape uses them.  BBox operations and
+ * IsDisjointTo do not, and run like {@link JtsGeoStrategy}.
+ */
+public class HybridGeoStrategy extends JtsGeoStrategy {
+
+  public static final String SUFFIX_PREFIX_TREE = "__rpt";
+
+  final RecursivePrefixTreeStrategy candidates;
+
+  public HybridGeoStrategy(JtsSpatialContext ctx, String fieldName, SpatialPrefixTree grid) {
+    super(ctx, fieldName);
+    this.candidates = new RecursivePrefixTreeStrategy(grid, fieldName + SUFFIX_PREFIX_TREE);
+  }
+
+  /**
+   * @return the prefix tree strategy, to adjust how closely it covers shapes
+   */
+  public RecursivePrefixTreeStrategy getCandidateStrategy() {
+    return candidates;
+  }
+
+  @Override
+  public Field[] createIndexableFields(Shape shape) {
+    Field[] exact = super.createIndexableFields(shape);
+    Field[] cells = candidates.createIndexableFields(shape);
+    Field[] fields = new Field[exact.length + cells.length];
+    System.arraycopy(exact, 0, fields, 0, exact.length);
+    System.arraycopy(cells, 0, fields, exact.length, cells.length);
+    return fields;
+  }
+
+  @Override
+  protected GeometryOperationFilter newFilter(QueryShapeCache.Entry entry) {
+    GeometryOperationFilter exact = super.newFilter(entry);
+    SpatialOperation op = entry.op;
+    if (op == SpatialOperation.BBoxIntersects || op == SpatialOperation.BBoxWithin
+        || op == SpatialOperation.IsDisjointTo) {
+      return exact;
+    }
+    // how closely the cells follow the query shape does not change the answer, only the work
+    SpatialArgs candidateArgs = new SpatialArgs(SpatialOperation.Intersects, entry.shape);
+    return new VerifiedFilter(candidates.makeFilter(candidateArgs), exact);
+  }
+
+  /**
+   * Iterates the candidates and keeps the ones the exact filter matches.  As
+   * a PostFilter it has no candidates to start from and tests each document
+   * it is given, like the exact filter.
+   */
+  static class VerifiedFilter extends GeometryOperationFilter {
+    final Filter candidates;
+
+    VerifiedFilter(Filter candidates, GeometryOperationFilter exact) {
+      super(exact.fieldName, exact.tester, exact.ctx);
+      setApproximate(exact.distErr);
+      setGeometryCache(exact.geometryCache);
+      setEnvelopeIndexes(exact.envelopeIndexes);
+      setOffHeapStore(exact.offHeapStore);
+      this.candidates = candidates;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+      final AtomicReader reader = context.reader();
+      final DocIdSet candidateSet = candidates.getDocIdSet(context, acceptDocs);
+      if (candidateSet == null) {
+        return null;
+      }
+      return new DocIdSet() {
+        @Override
+        public DocIdSetIterator iterator() throws IOException {
+          DocIdSetIterator it = candidateSet.iterator();
+          final DocMatcher matcher = getDocMatcher(reader);
+          if (it == null || matcher == null) {
+            return null;
+          }
+          return new FilteredDocIdSetIterator(it) {
+            @Override
+            protected boolean match(int doc) {
+              return matcher.matches(doc);
+            }
+          };
+        }
+
+        @Override
+        public boolean isCacheable() {
+          return false;
+        }
+      };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return super.equals(o) && candidates.equals(((VerifiedFilter) o).candidates);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + candidates.hashCode();
+    }
+  }
+}
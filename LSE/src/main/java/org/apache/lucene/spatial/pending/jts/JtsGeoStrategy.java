@@ -18,77 +18,630 @@ package org.apache.lucene.spatial.pending.jts;
 
 import com.spatial4j.core.context.jts.JtsSpatialContext;
 import com.spatial4j.core.exception.InvalidShapeException;
+import com.spatial4j.core.shape.Circle;
 import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Rectangle;
 import com.spatial4j.core.shape.Shape;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.TopologyException;
 import com.vividsolutions.jts.io.WKBWriter;
 import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.DoubleDocValuesField;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.sorter.SortingMergePolicy;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.spatial.SpatialStrategy;
 import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
 import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
 /**
- * Put raw WKB in DocValues
+ * Put raw WKB (or the {@link Encoding#COMPACT} form) in DocValues, along with
+ * the geometry envelope as four numeric DocValues so most documents can be
+ * decided without reading the geometry.
  */
 public class JtsGeoStrategy extends SpatialStrategy {
 
   private static final Logger logger = LoggerFactory.getLogger(JtsGeoStrategy.class);
 
+  public static final String SUFFIX_MINX = "__minX";
+  public static final String SUFFIX_MAXX = "__maxX";
+  public static final String SUFFIX_MINY = "__minY";
+  public static final String SUFFIX_MAXY = "__maxY";
+  public static final String SUFFIX_LOD = "__lod";
+  public static final String SUFFIX_LOD_TOLERANCE = "__lodTol";
+  public static final String SUFFIX_SORT_KEY = "__sortKey";
+  public static final String SUFFIX_TILES = "__tiles";
+  public static final String SUFFIX_TILE_ENVELOPES = "__tileEnvs";
+
+  /**
+   * How the geometry bytes are kept in DocValues.  The index holds one
+   * DocValues type per field name, so a field can not change storage
+   * without being re-indexed from empty or under another name.
+   */
+  public enum Storage {
+    /** SortedDocValues; values are deduplicated and limited to 32k */
+    SORTED,
+    /** BinaryDocValues; no sorting, ord map or size limit */
+    BINARY
+  }
+
+  /**
+   * How the geometry is written into bytes
+   */
+  public enum Encoding {
+    /** Well Known Binary; exact doubles */
+    WKB,
+    /** {@link CompactGeometryWriter}; rounded coordinates, several times smaller */
+    COMPACT
+  }
+
   private int max_wkb_length = 32000;
+  private Storage storage = Storage.SORTED;
+  private Encoding encoding = Encoding.WKB;
+
+  private int parallelism = 0;
+  private int parallelMinDocs = 100000;
+  private ForkJoinPool pool;
+  // shared daemon pools, never shut down; see getSharedPool
+  private static final Map<Integer, ForkJoinPool> sharedPools = new HashMap<Integer, ForkJoinPool>();
+
+  private boolean distanceToCentroid = false;
+
+  private int lodPoints = 0;
+
+  private QueryShapeCache queryCache;
+
+  private GeometryCache geometryCache;
+
+  private EnvelopeIndexCache envelopeIndexes;
+  // kept for nearest searches even without envelopeIndex
+  private EnvelopeIndexCache nearestIndexes;
+
+  private OffHeapGeometryStore offHeapStore;
+
+  private SpaceFillingCurve sortCurve;
+
+  private int tilePoints = 0;
+  private int tileBytes = 1 << 14;
 
   public JtsGeoStrategy(JtsSpatialContext ctx, String name) {
     super(ctx, name);
   }
 
+  public Storage getStorage() {
+    return storage;
+  }
+
+  public void setStorage(Storage storage) {
+    this.storage = storage;
+  }
+
+  public Encoding getEncoding() {
+    return encoding;
+  }
+
+  public void setEncoding(Encoding encoding) {
+    this.encoding = encoding;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * @param parallelism threads used to test one large segment, on the shared
+   *                    pool of that size; 0 (the default) or 1 tests each
+   *                    segment on the searching thread
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  public int getParallelMinDocs() {
+    return parallelMinDocs;
+  }
+
+  /**
+   * @param minDocs segments smaller than this are never split
+   */
+  public void setParallelMinDocs(int minDocs) {
+    this.parallelMinDocs = minDocs;
+  }
+
+  public boolean isDistanceToCentroid() {
+    return distanceToCentroid;
+  }
+
+  /**
+   * @param centroid measure distances to the centroid instead of the nearest edge
+   */
+  public void setDistanceToCentroid(boolean centroid) {
+    this.distanceToCentroid = centroid;
+  }
+
+  public int getLodPoints() {
+    return lodPoints;
+  }
+
+  /**
+   * @param points vertex budget of the coarse level of detail kept next to
+   *               geometries with many more vertices; 0 (the default) keeps none
+   */
+  public void setLodPoints(int points) {
+    this.lodPoints = points;
+  }
+
+  public QueryShapeCache getQueryCache() {
+    return queryCache;
+  }
+
+  /**
+   * @param cache parsed and prepared query shapes; it may be shared by several strategies
+   */
+  public void setQueryCache(QueryShapeCache cache) {
+    this.queryCache = cache;
+  }
+
+  public GeometryCache getGeometryCache() {
+    return geometryCache;
+  }
+
+  /**
+   * @param cache decoded geometries kept between queries; it may be shared by several strategies
+   */
+  public void setGeometryCache(GeometryCache cache) {
+    this.geometryCache = cache;
+  }
+
+  public boolean isEnvelopeIndex() {
+    return envelopeIndexes != null;
+  }
+
+  /**
+   * @param index build an {@link EnvelopeIndex} per segment on first use, so
+   *              filters only visit documents whose envelope can match
+   */
+  public void setEnvelopeIndex(boolean index) {
+    this.envelopeIndexes = index ? new EnvelopeIndexCache() : null;
+  }
+
+  public boolean isOffHeap() {
+    return offHeapStore != null;
+  }
+
+  /**
+   * @param offHeap decode each segment once into direct buffers and read the
+   *                geometries from there, within {@link OffHeapGeometryStore#DEFAULT_MAX_BYTES}
+   */
+  public void setOffHeap(boolean offHeap) {
+    this.offHeapStore = offHeap ? new OffHeapGeometryStore(OffHeapGeometryStore.DEFAULT_MAX_BYTES) : null;
+  }
+
+  public OffHeapGeometryStore getOffHeapStore() {
+    return offHeapStore;
+  }
+
+  /**
+   * @param store direct buffers of decoded segments; it may be shared by several strategies
+   */
+  public void setOffHeapStore(OffHeapGeometryStore store) {
+    this.offHeapStore = store;
+  }
+
+  public SpaceFillingCurve getSortCurve() {
+    return sortCurve;
+  }
+
+  /**
+   * @param curve index the key of each geometry along this curve, so
+   *              segments can be sorted by it (see {@link #newSortingMergePolicy});
+   *              null (the default) adds no key
+   */
+  public void setSortCurve(SpaceFillingCurve curve) {
+    this.sortCurve = curve;
+  }
+
+  public int getTilePoints() {
+    return tilePoints;
+  }
+
+  /**
+   * @param points geometries with more vertices are also clipped by a
+   *               {@link GeometryTiler} into fragments of at most this many,
+   *               which the filter tests instead; 0 (the default) does not tile.
+   *               With {@link Storage#SORTED} a geometry longer than
+   *               max_wkb_length is still stored simplified, and distances and
+   *               distErrPct approximations read that simplified value.
+   */
+  public void setTilePoints(int points) {
+    this.tilePoints = points;
+  }
+
+  public int getTileBytes() {
+    return tileBytes;
+  }
+
+  /**
+   * @param bytes fragments are also split until they encode to at most this
+   *              many bytes, default 16k, so testing one never decodes more
+   */
+  public void setTileBytes(int bytes) {
+    this.tileBytes = bytes;
+  }
+
+  /**
+   * @return the order of documents along the sort curve of the field
+   */
+  public static Sort newSpatialSort(String fieldName) {
+    return new Sort(new SortField(fieldName + SUFFIX_SORT_KEY, SortField.Type.LONG));
+  }
+
+  /**
+   * Merged segments come out sorted by the key of {@link #setSortCurve}, so
+   * nearby geometries sit in the same docID range and {@link BlockEnvelopes}
+   * summaries stay tight.  Newly flushed segments keep their indexing order.
+   */
+  public MergePolicy newSortingMergePolicy(MergePolicy in) {
+    return new SortingMergePolicy(in, newSpatialSort(getFieldName()));
+  }
+
+  /**
+   * @param pool test large segments on this pool instead of the shared one
+   *             of {@link #getSharedPool}; the caller shuts it down
+   */
+  public synchronized void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+    this.parallelism = (pool == null ? 0 : pool.getParallelism());
+  }
+
+  protected synchronized ForkJoinPool getPool() {
+    if (pool == null && parallelism > 1) {
+      pool = getSharedPool(parallelism);
+    }
+    return pool;
+  }
+
+  /**
+   * One pool per parallelism for the whole JVM, shared by every strategy,
+   * field and core, so strategies made again on a schema or core reload
+   * reuse it instead of leaving pools behind.  The pools are never shut
+   * down: nothing owns them, and a closing core can not know whether another
+   * core still uses one.  Their workers are daemon threads, which do not keep
+   * the JVM alive, and the pool retires them when idle.  Use
+   * {@link #setPool} for a pool with a lifecycle of its own.
+   */
+  public static ForkJoinPool getSharedPool(int parallelism) {
+    synchronized (sharedPools) {
+      ForkJoinPool pool = sharedPools.get(parallelism);
+      if (pool == null) {
+        pool = new ForkJoinPool(parallelism);
+        sharedPools.put(parallelism, pool);
+      }
+      return pool;
+    }
+  }
+
+  protected BytesRef encode(Geometry geo) {
+    if (encoding == Encoding.COMPACT) {
+      return new CompactGeometryWriter().write(geo);
+    }
+    return new BytesRef(new WKBWriter().write(geo));
+  }
+
+  /**
+   * @return the envelope of the geometry as the filter will read it back
+   */
+  protected Envelope getStoredEnvelope(Geometry geo) {
+    if (encoding == Encoding.COMPACT) {
+      return new CompactGeometryWriter().quantize(geo.getEnvelopeInternal());
+    }
+    return geo.getEnvelopeInternal();
+  }
+
   @Override
   public Field[] createIndexableFields(Shape shape) {
-    Geometry geo = ((JtsSpatialContext)ctx).getGeometryFrom(shape);
+    return createIndexableFields(((JtsSpatialContext)ctx).getGeometryFrom(shape));
+  }
 
-    WKBWriter writer = new WKBWriter();
-    BytesRef wkb = new BytesRef(writer.write(geo));
-
-    if (max_wkb_length > 0 && wkb.length > max_wkb_length) {
-      long last = wkb.length;
-      Envelope env = geo.getEnvelopeInternal();
-      double mins = Math.min(env.getWidth(), env.getHeight());
-      double div = 1000;
-      while (true) {
-        double tolerance = mins / div;
-        if (logger.isInfoEnabled()) {
-          logger.info("Simplifying long geometry: WKB.length=" + wkb.length + " tolerance=" + tolerance);
-        }
-        Geometry simple = TopologyPreservingSimplifier.simplify(geo, tolerance);
-        wkb = new BytesRef(writer.write(simple));
-        if (wkb.length < max_wkb_length) {
-          break;
-        }
-        if (wkb.length == last) {
-          throw new InvalidShapeException("Can not simplify geometry smaller then max. " + last);
+  /**
+   * Index the geometry as it is.  Spatial4j cuts shapes at the dateline, but
+   * a JTS geometry may go past -180 or 180.  Circle queries compare
+   * longitudes modulo 360 (see {@link GeodesicCircleTester}), other query
+   * shapes compare the coordinates as they are.
+   */
+  public Field[] createIndexableFields(Geometry geo) {
+    List<Geometry> tiles = null;
+    if (tilePoints > 0 && geo.getNumPoints() > tilePoints) {
+      tiles = tile(geo);
+    }
+
+    BytesRef wkb = encode(geo);
+    Envelope env = getStoredEnvelope(geo);
+    Geometry stored = geo;
+
+    // only sorted values are held to the term length limit
+    if (storage == Storage.SORTED && max_wkb_length > 0 && wkb.length > max_wkb_length) {
+      if (logger.isInfoEnabled()) {
+        logger.info("Simplifying long geometry: length=" + wkb.length);
+      }
+      SizeTargetedSimplifier simplifier = new SizeTargetedSimplifier(geo);
+      Geometry simple = simplifier.simplifyToSize(max_wkb_length, wkb.length, new SizeTargetedSimplifier.Sizer() {
+        @Override
+        public int sizeOf(Geometry g) {
+          return encode(g).length;
         }
-        last = wkb.length;
-        div *= .70;
+      });
+      wkb = encode(simple);
+      if (wkb.length >= max_wkb_length) {
+        throw new InvalidShapeException("Can not simplify geometry smaller then max. " + wkb.length);
+      }
+      env = getStoredEnvelope(simple);
+      stored = simple;
+      if (tiles != null) {
+        // a sorted value can not hold the whole geometry even when tiled, so
+        // it stays simplified; the exact tests read the fragments instead
+        env = getStoredEnvelope(geo);
+        stored = geo;
+      }
+    }
+
+    // an empty geometry has no envelope; NaN makes the filter read the geometry
+    boolean empty = env.isNull();
+    List<Field> fields = new ArrayList<Field>(8);
+    fields.add(storage == Storage.BINARY
+        ? new BinaryDocValuesField(getFieldName(), wkb)
+        : new SortedDocValuesField(getFieldName(), wkb));
+    fields.add(new DoubleDocValuesField(getFieldName() + SUFFIX_MINX, empty ? Double.NaN : env.getMinX()));
+    fields.add(new DoubleDocValuesField(getFieldName() + SUFFIX_MAXX, empty ? Double.NaN : env.getMaxX()));
+    fields.add(new DoubleDocValuesField(getFieldName() + SUFFIX_MINY, empty ? Double.NaN : env.getMinY()));
+    fields.add(new DoubleDocValuesField(getFieldName() + SUFFIX_MAXY, empty ? Double.NaN : env.getMaxY()));
+
+    if (sortCurve != null) {
+      fields.add(new NumericDocValuesField(getFieldName() + SUFFIX_SORT_KEY,
+          sortCurve.key(env, ctx.getWorldBounds())));
+    }
+
+    if (lodPoints > 0 && stored.getNumPoints() > lodPoints * 4) {
+      addLevelOfDetail(fields, stored, env);
+    }
+
+    if (tiles != null) {
+      List<Envelope> envs = new ArrayList<Envelope>(tiles.size());
+      List<BytesRef> encoded = new ArrayList<BytesRef>(tiles.size());
+      for (Geometry tile : tiles) {
+        envs.add(getStoredEnvelope(tile));
+        encoded.add(encode(tile));
       }
+      fields.add(new BinaryDocValuesField(getFieldName() + SUFFIX_TILE_ENVELOPES,
+          GeometryTiler.toEnvelopes(envs, encoded)));
+      fields.add(new BinaryDocValuesField(getFieldName() + SUFFIX_TILES,
+          GeometryTiler.toFragments(encoded)));
+    }
+    return fields.toArray(new Field[fields.size()]);
+  }
+
+  /**
+   * @return the fragments of the geometry, or null if it can not be clipped
+   */
+  protected List<Geometry> tile(Geometry geo) {
+    Rectangle world = ctx.getWorldBounds();
+    GeometryTiler tiler = new GeometryTiler(
+        new Envelope(world.getMinX(), world.getMaxX(), world.getMinY(), world.getMaxY()), tilePoints, tileBytes,
+        new SizeTargetedSimplifier.Sizer() {
+          @Override
+          public int sizeOf(Geometry g) {
+            return encode(g).length;
+          }
+        });
+    try {
+      return tiler.tile(geo);
+    }
+    catch (TopologyException ex) {
+      logger.warn("Can not tile geometry, indexing it whole", ex);
+      return null;
     }
+  }
+
+  /**
+   * Keep a coarse version of a detailed geometry and its tolerance, so the
+   * filter can often decide without reading the full geometry.  The
+   * simplifiers only drop vertices, and no point moves further than the
+   * tolerance; {@link GeometryTest#matchesCoarse} relies on both.
+   */
+  protected void addLevelOfDetail(List<Field> fields, Geometry stored, Envelope env) {
+    SizeTargetedSimplifier simplifier = new SizeTargetedSimplifier(stored);
+    Geometry coarse = simplifier.simplifyToPoints(lodPoints);
+    double tolerance = simplifier.getTolerance();
+    if (encoding == Encoding.COMPACT) {
+      // both geometries are rounded independently when they are written
+      tolerance += 2 / Math.pow(10, CompactGeometryWriter.DEFAULT_DIGITS);
+    }
+    fields.add(new BinaryDocValuesField(getFieldName() + SUFFIX_LOD, encode(coarse)));
+    fields.add(new DoubleDocValuesField(getFieldName() + SUFFIX_LOD_TOLERANCE, tolerance));
+  }
+
+  /**
+   * @return a k nearest neighbour search over this field, sharing its caches
+   *         and envelope indexes; the indexes are kept for these searches even
+   *         when {@link #setEnvelopeIndex} is off
+   */
+  public NearestGeometries newNearestGeometries() {
+    NearestGeometries nearest = new NearestGeometries(getFieldName(), (JtsSpatialContext)ctx, distanceToCentroid);
+    nearest.setGeometryCache(geometryCache);
+    nearest.setOffHeapStore(offHeapStore);
+    nearest.setEnvelopeIndexes(envelopeIndexes != null ? envelopeIndexes : getNearestIndexes());
+    return nearest;
+  }
 
-    return new Field[]{new SortedDocValuesField(getFieldName(), wkb)};
+  private synchronized EnvelopeIndexCache getNearestIndexes() {
+    if (nearestIndexes == null) {
+      nearestIndexes = new EnvelopeIndexCache();
+    }
+    return nearestIndexes;
+  }
+
+  /**
+   * @return a query for the k documents nearest to the point
+   */
+  public Query makeNearestQuery(Point from, int k) {
+    return makeNearestQuery(from, k, null);
+  }
+
+  /**
+   * @param filter the k nearest are found among the documents it accepts; may be null
+   * @return a query for the k documents nearest to the point
+   */
+  public Query makeNearestQuery(Point from, int k, Filter filter) {
+    return new NearestGeometryQuery(newNearestGeometries(), from, k, filter);
   }
 
   @Override
   public ValueSource makeDistanceValueSource(Point queryPoint, double multiplier) {
-    throw new UnsupportedOperationException();
+    GeometryDistanceValueSource source = new GeometryDistanceValueSource(getFieldName(), (JtsSpatialContext)ctx,
+        queryPoint, multiplier, distanceToCentroid);
+    source.setGeometryCache(geometryCache);
+    source.setOffHeapStore(offHeapStore);
+    return source;
   }
 
+  /**
+   * Results are exact unless the args have a distErrPct above 0.  Then
+   * distErr is computed from it as for the prefix tree strategies (a fraction
+   * of the distance from the query shape's center to its bounding box corner)
+   * and documents whose geometry is closer than distErr to the boundary of the
+   * query shape may be wrongly included or left out.  Anything further away is
+   * still decided exactly.  The query shape is simplified to within distErr/2
+   * and the documents are tested as their envelope or their coarse level of
+   * detail when those are within distErr/2.
+   */
   @Override
-  public Filter makeFilter(SpatialArgs args) {
-    Geometry geo = ((JtsSpatialContext)ctx).getGeometryFrom(args.getShape());
-    GeometryTest tester = GeometryTestFactory.get(args.getOperation(), geo);
-    return new GeometryOperationFilter(getFieldName(), tester, ((JtsSpatialContext)ctx));
+  public GeometryOperationFilter makeFilter(SpatialArgs args) {
+    Double distErrPct = args.getDistErrPct();
+    QueryShapeCache.Entry entry = newQueryShape(args.getShape(), args.getOperation(),
+        distErrPct == null ? 0 : distErrPct);
+    return newFilter(entry);
+  }
+
+  /**
+   * Like {@link #makeFilter(SpatialArgs)}, but the prepared query shape is
+   * kept in the query cache under the operation, the shape string the args
+   * were parsed from and the distErrPct, so it is only prepared once.
+   */
+  public GeometryOperationFilter makeFilter(SpatialArgs args, String shapeString) {
+    QueryShapeCache cache = queryCache;
+    if (cache == null) {
+      return makeFilter(args);
+    }
+    double distErrPct = (args.getDistErrPct() == null) ? 0 : args.getDistErrPct();
+    QueryShapeCache.Key key = new QueryShapeCache.Key(shapeString, args.getOperation(), distErrPct);
+    QueryShapeCache.Entry entry = cache.get(key);
+    if (entry == null) {
+      entry = newQueryShape(args.getShape(), args.getOperation(), distErrPct);
+      cache.put(key, entry);
+    }
+    return newFilter(entry);
+  }
+
+  /**
+   * Geodesic circles are tested by distance where the operation allows,
+   * see {@link GeodesicCircleTester}; other shapes become JTS geometries.
+   */
+  protected QueryShapeCache.Entry newQueryShape(Shape shape, SpatialOperation op, double distErrPct) {
+    double distErr = 0;
+    if (distErrPct > 0) {
+      distErr = SpatialArgs.calcDistanceFromErrPct(shape, distErrPct, ctx);
+    }
+    if (shape instanceof Circle) {
+      GeometryTest tester = GeometryTestFactory.getCircle(op, (Circle) shape, ctx);
+      if (tester != null) {
+        return new QueryShapeCache.Entry(shape, op, tester, distErr);
+      }
+    }
+    Geometry geo = ((JtsSpatialContext)ctx).getGeometryFrom(shape);
+    if (distErrPct > 0 && geo.getNumPoints() > 4) {
+      geo = TopologyPreservingSimplifier.simplify(geo, distErr / 2);
+    }
+    return new QueryShapeCache.Entry(shape, op, GeometryTestFactory.get(op, geo, ctx), distErr);
+  }
+
+  protected GeometryOperationFilter newFilter(QueryShapeCache.Entry entry) {
+    GeometryOperationFilter filter = new GeometryOperationFilter(getFieldName(), entry.tester, ((JtsSpatialContext)ctx));
+    filter.setApproximate(entry.distErr);
+    filter.setGeometryCache(geometryCache);
+    filter.setEnvelopeIndexes(envelopeIndexes);
+    filter.setOffHeapStore(offHeapStore);
+    ForkJoinPool pool = getPool();
+    if (pool != null) {
+      filter.setParallel(pool, parallelMinDocs);
+    }
+    return filter;
+  }
+
+  /**
+   * Load what queries on a new segment need before the first query does: the
+   * DocValues and envelopes, the envelope index if there is one, and with
+   * decode the geometries, into the geometry cache if there is one.  The
+   * off-heap copy, if there is one, is always made.
+   */
+  public void warm(AtomicReader reader, boolean decode) throws IOException {
+    if (envelopeIndexes != null) {
+      envelopeIndexes.get(reader, getFieldName(), ((JtsSpatialContext)ctx).getGeometryFactory());
+    }
+    if (offHeapStore != null) {
+      offHeapStore.get(reader, getFieldName(), ((JtsSpatialContext)ctx).getGeometryFactory());
+      return;
+    }
+    GeometryDocValues values = GeometryDocValues.get(reader, getFieldName(),
+        ((JtsSpatialContext)ctx).getGeometryFactory(), geometryCache);
+    if (values == null) {
+      return;
+    }
+    decode = decode && geometryCache != null;
+    Envelope env = new Envelope();
+    for (int docID = 0; docID < reader.maxDoc(); docID++) {
+      if (!values.exists(docID)) {
+        continue;
+      }
+      values.getEnvelope(docID, env);
+      if (decode) {
+        try {
+          values.getGeometry(docID);
+        }
+        catch (com.vividsolutions.jts.io.ParseException ex) {
+          logger.warn("error reading indexed geometry", ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Restrict a query to documents matching the spatial args.  The query
+   * drives the iteration and the geometry is only tested on the documents
+   * it matches, which is much cheaper than the filter on its own when the
+   * query is selective.
+   */
+  public Query makeFilteredQuery(Query query, SpatialArgs args) {
+    return new FilteredQuery(query, makeFilter(args), FilteredQuery.QUERY_FIRST_FILTER_STRATEGY);
   }
-}
\ No newline at end of file
+}
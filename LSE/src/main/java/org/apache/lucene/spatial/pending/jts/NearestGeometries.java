@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the k documents whose geometry is nearest to a point.  The
+ * {@link EnvelopeIndex} nodes of every segment go into one priority queue,
+ * keyed by the least distance from the point to their box.  The nearest
+ * entry is taken off the queue: a node adds its children, a document adds
+ * itself again with its exact distance, and a document with an exact
+ * distance is the next result.  So geometries are only read for documents
+ * whose box is nearer than the k-th result, and the work grows with k, not
+ * with the size of the index.
+ * <p/>
+ * Distances are the same as {@link GeometryDistanceValueSource}'s, in the
+ * units of the context's DistanceCalculator (degrees for geo).  Keep
+ * envelope indexes between searches with {@link #setEnvelopeIndexes}, as
+ * {@link JtsGeoStrategy#newNearestGeometries} does; otherwise each search
+ * builds them.  Segments without envelopes have every document read.
+ */
+public class NearestGeometries {
+
+  final String fieldName;
+  final JtsSpatialContext ctx;
+  final boolean centroid;
+
+  GeometryCache geometryCache;
+  OffHeapGeometryStore offHeapStore;
+  EnvelopeIndexCache envelopeIndexes;
+
+  public NearestGeometries(String fieldName, JtsSpatialContext ctx, boolean centroid) {
+    this.fieldName = fieldName;
+    this.ctx = ctx;
+    this.centroid = centroid;
+  }
+
+  public void setGeometryCache(GeometryCache cache) {
+    this.geometryCache = cache;
+  }
+
+  public void setOffHeapStore(OffHeapGeometryStore store) {
+    this.offHeapStore = store;
+  }
+
+  public void setEnvelopeIndexes(EnvelopeIndexCache indexes) {
+    this.envelopeIndexes = indexes;
+  }
+
+  /**
+   * @param filter only documents it accepts are considered; may be null
+   * @return up to k live documents, nearest first, with the distance as score
+   */
+  public TopDocs search(IndexReader reader, Point from, int k, Filter filter) throws IOException {
+    GeometryDistanceValueSource source = new GeometryDistanceValueSource(fieldName, ctx, from, 1, centroid);
+    source.setGeometryCache(geometryCache);
+    source.setOffHeapStore(offHeapStore);
+
+    PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+    List<Leaf> leaves = new ArrayList<Leaf>();
+    for (AtomicReaderContext context : reader.leaves()) {
+      Leaf leaf = newLeaf(context, source, filter);
+      if (leaf == null) {
+        continue;
+      }
+      leaves.add(leaf);
+      if (leaf.index == null) {
+        for (int doc = 0; doc < context.reader().maxDoc(); doc++) {
+          queue.add(new Entry(0, leaf, -1, doc));
+        }
+      }
+      else {
+        int top = leaf.index.boxes.length - 1;
+        for (int node = 0; node < leaf.index.boxes[top].length / 4; node++) {
+          queue.add(new Entry(lowerBound(from, leaf.index.boxes[top], node), leaf, top, node));
+        }
+      }
+    }
+
+    List<ScoreDoc> hits = new ArrayList<ScoreDoc>(k);
+    while (hits.size() < k && !queue.isEmpty()) {
+      Entry e = queue.poll();
+      if (e.exact) {
+        hits.add(new ScoreDoc(e.leaf.docBase + e.node, (float) e.distance));
+      }
+      else if (e.level < 0) {
+        // a document
+        GeometryDistanceValueSource.Distances distances = e.leaf.distances;
+        if (e.leaf.accept(e.node) && distances.values != null && distances.values.exists(e.node)) {
+          Entry exact = new Entry(distances.distance(e.node), e.leaf, -1, e.node);
+          exact.exact = true;
+          queue.add(exact);
+        }
+      }
+      else if (e.level == 0) {
+        queue.add(new Entry(e.distance, e.leaf, -1, e.leaf.index.docs[e.node]));
+      }
+      else {
+        float[] below = e.leaf.index.boxes[e.level - 1];
+        int end = Math.min((e.node + 1) * EnvelopeIndex.NODE_SIZE, below.length / 4);
+        for (int child = e.node * EnvelopeIndex.NODE_SIZE; child < end; child++) {
+          queue.add(new Entry(Math.max(e.distance, lowerBound(from, below, child)), e.leaf, e.level - 1, child));
+        }
+      }
+    }
+
+    ScoreDoc[] scoreDocs = hits.toArray(new ScoreDoc[hits.size()]);
+    float max = scoreDocs.length == 0 ? Float.NaN : scoreDocs[scoreDocs.length - 1].score;
+    return new TopDocs(scoreDocs.length, scoreDocs, max);
+  }
+
+  private Leaf newLeaf(AtomicReaderContext context, GeometryDistanceValueSource source, Filter filter) throws IOException {
+    AtomicReader reader = context.reader();
+    if (GeometryDocValues.getBinaryDocValues(reader, fieldName) == null) {
+      return null;
+    }
+    Bits accept = reader.getLiveDocs();
+    if (filter != null) {
+      DocIdSet set = filter.getDocIdSet(context, accept);
+      if (set == null) {
+        return null;
+      }
+      accept = set.bits();
+      if (accept == null) {
+        DocIdSetIterator it = set.iterator();
+        if (it == null) {
+          return null;
+        }
+        FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+        bits.or(it);
+        accept = bits;
+      }
+    }
+    EnvelopeIndex index = (envelopeIndexes != null)
+        ? envelopeIndexes.get(reader, fieldName, ctx.getGeometryFactory())
+        : buildIndex(reader);
+    return new Leaf(context.docBase, index, accept, source.new Distances(reader));
+  }
+
+  private EnvelopeIndex buildIndex(AtomicReader reader) throws IOException {
+    GeometryDocValues values = GeometryDocValues.get(reader, fieldName, ctx.getGeometryFactory());
+    return values == null ? null : EnvelopeIndex.build(values, reader.maxDoc());
+  }
+
+  /**
+   * @return the least distance from the point to the box of a node
+   */
+  double lowerBound(Point from, float[] boxes, int node) {
+    int i = node * 4;
+    double minX = boxes[i];
+    double minY = boxes[i + 1];
+    double maxX = boxes[i + 2];
+    double maxY = boxes[i + 3];
+    double x = from.getX();
+    double y = from.getY();
+    if (!ctx.isGeo()) {
+      double dx = Math.max(0, Math.max(minX - x, x - maxX));
+      double dy = Math.max(0, Math.max(minY - y, y - maxY));
+      return Math.sqrt(dx * dx + dy * dy);
+    }
+    if (inLonRange(x, minX, maxX)) {
+      return Math.max(0, Math.max(minY - y, y - maxY));
+    }
+    // the nearest point of the box is on one of its meridian edges
+    return Math.min(meridianDistance(from, minX, minY, maxY), meridianDistance(from, maxX, minY, maxY));
+  }
+
+  /**
+   * @return the least distance from the point to a meridian between two latitudes
+   */
+  private double meridianDistance(Point from, double lon, double minY, double maxY) {
+    double y = from.getY();
+    double delta = lonDelta(from.getX(), lon);
+    if (delta >= 90) {
+      // the nearest point of the great circle is on the opposite meridian, so
+      // along this one the distance only has a greatest value: take an end
+      return Math.min(ctx.getDistCalc().distance(from, lon, minY), ctx.getDistCalc().distance(from, lon, maxY));
+    }
+    // the distance falls to a single least value; clamp where that is
+    double lat = Math.toDegrees(Math.atan(Math.tan(Math.toRadians(y)) / Math.cos(Math.toRadians(delta))));
+    lat = Math.max(minY, Math.min(maxY, lat));
+    return ctx.getDistCalc().distance(from, lon, lat);
+  }
+
+  /**
+   * @return true if the longitude, or the same one 360 degrees over, is in range;
+   *         boxes of geometries kept past the dateline reach beyond 180
+   */
+  static boolean inLonRange(double x, double minX, double maxX) {
+    for (int k = -1; k <= 1; k++) {
+      if (x + 360 * k >= minX && x + 360 * k <= maxX) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static double lonDelta(double a, double b) {
+    double d = Math.abs(a - b) % 360;
+    return d > 180 ? 360 - d : d;
+  }
+
+  static class Leaf {
+    final int docBase;
+    final EnvelopeIndex index;   // null to read every document
+    final Bits accept;
+    final GeometryDistanceValueSource.Distances distances;
+
+    Leaf(int docBase, EnvelopeIndex index, Bits accept, GeometryDistanceValueSource.Distances distances) {
+      this.docBase = docBase;
+      this.index = index;
+      this.accept = accept;
+      this.distances = distances;
+    }
+
+    boolean accept(int doc) {
+      return accept == null || accept.get(doc);
+    }
+  }
+
+  /**
+   * A node (level >= 0), a document to measure (level -1) or a measured
+   * document (exact); ties go to the exact distance, then the lower docID
+   */
+  static class Entry implements Comparable<Entry> {
+    final double distance;
+    final Leaf leaf;
+    final int level;
+    final int node;
+    boolean exact;
+
+    Entry(double distance, Leaf leaf, int level, int node) {
+      this.distance = distance;
+      this.leaf = leaf;
+      this.level = level;
+      this.node = node;
+    }
+
+    @Override
+    public int compareTo(Entry o) {
+      int c = Double.compare(distance, o.distance);
+      if (c != 0) return c;
+      if (exact != o.exact) return exact ? -1 : 1;
+      return Integer.compare(leaf.docBase + node, o.leaf.docBase + o.node);
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.ComplexExplanation;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Matches the k documents whose geometry is nearest to a point, found with
+ * {@link NearestGeometries} when the weight is made.  The score is
+ * 1 / (1 + distance), so sorting by score puts the nearest first.  The k
+ * nearest are found among the documents the filter given here accepts;
+ * other clauses and filters only narrow those k down.
+ */
+public class NearestGeometryQuery extends Query {
+
+  final NearestGeometries nearest;
+  final Point from;
+  final int k;
+  final Filter filter;
+
+  /**
+   * @param filter the k nearest are found among the documents it accepts; may be null
+   */
+  public NearestGeometryQuery(NearestGeometries nearest, Point from, int k, Filter filter) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive: " + k);
+    }
+    this.nearest = nearest;
+    this.from = from;
+    this.k = k;
+    this.filter = filter;
+  }
+
+  @Override
+  public Weight createWeight(IndexSearcher searcher) throws IOException {
+    IndexReader reader = searcher.getIndexReader();
+    TopDocs hits = nearest.search(reader, from, k, filter);
+    ScoreDoc[] byDoc = hits.scoreDocs.clone();
+    Arrays.sort(byDoc, new Comparator<ScoreDoc>() {
+      @Override
+      public int compare(ScoreDoc a, ScoreDoc b) {
+        return Integer.compare(a.doc, b.doc);
+      }
+    });
+    return new NearestWeight(reader, byDoc);
+  }
+
+  class NearestWeight extends Weight {
+    final IndexReader reader;
+    final ScoreDoc[] hits; // by docID, score is the distance
+    float queryWeight;
+
+    NearestWeight(IndexReader reader, ScoreDoc[] hits) {
+      this.reader = reader;
+      this.hits = hits;
+      this.queryWeight = getBoost();
+    }
+
+    @Override
+    public Query getQuery() {
+      return NearestGeometryQuery.this;
+    }
+
+    @Override
+    public float getValueForNormalization() {
+      return queryWeight * queryWeight;
+    }
+
+    @Override
+    public void normalize(float norm, float topLevelBoost) {
+      queryWeight *= norm * topLevelBoost;
+    }
+
+    /**
+     * @return the hits of the segment as segment docIDs and distances
+     */
+    private int[] segmentHits(AtomicReaderContext context, float[] distances) {
+      int[] docs = new int[0];
+      int count = 0;
+      int end = context.docBase + context.reader().maxDoc();
+      for (ScoreDoc hit : hits) {
+        if (hit.doc >= context.docBase && hit.doc < end) {
+          docs = ArrayUtil.grow(docs, count + 1);
+          docs[count] = hit.doc - context.docBase;
+          distances[count] = hit.score;
+          count++;
+        }
+      }
+      return Arrays.copyOf(docs, count);
+    }
+
+    @Override
+    public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+      if (ReaderUtil.getTopLevelContext(context).reader() != reader) {
+        throw new IllegalStateException("the weight was made for another reader");
+      }
+      float[] distances = new float[hits.length];
+      final int[] docs = segmentHits(context, distances);
+      if (docs.length == 0) {
+        return null;
+      }
+      final float[] scores = new float[docs.length];
+      for (int i = 0; i < docs.length; i++) {
+        scores[i] = queryWeight / (1 + distances[i]);
+      }
+      final Bits accept = acceptDocs;
+      return new Scorer(this) {
+        int i = -1;
+        int doc = -1;
+
+        @Override
+        public int docID() {
+          return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+          while (++i < docs.length) {
+            if (accept == null || accept.get(docs[i])) {
+              return doc = docs[i];
+            }
+          }
+          return doc = NO_MORE_DOCS;
+        }
+
+        @Override
+        public int advance(int target) {
+          int d;
+          while ((d = nextDoc()) < target) {
+          }
+          return d;
+        }
+
+        @Override
+        public float score() {
+          return scores[i];
+        }
+
+        @Override
+        public int freq() {
+          return 1;
+        }
+
+        @Override
+        public long cost() {
+          return docs.length;
+        }
+      };
+    }
+
+    @Override
+    public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+      float[] distances = new float[hits.length];
+      int[] docs = segmentHits(context, distances);
+      int i = Arrays.binarySearch(docs, doc);
+      if (i < 0) {
+        return new ComplexExplanation(false, 0, "not one of the " + k + " nearest to " + from);
+      }
+      ComplexExplanation result = new ComplexExplanation(true, queryWeight / (1 + distances[i]),
+          "1 / (1 + distance), one of the " + k + " nearest to " + from);
+      result.addDetail(new Explanation(distances[i], "distance"));
+      result.addDetail(new Explanation(queryWeight, "queryWeight"));
+      return result;
+    }
+  }
+
+  @Override
+  public String toString(String field) {
+    return "nearest(" + nearest.fieldName + ", " + from + ", k=" + k
+        + (filter == null ? "" : ", filter=" + filter) + ")";
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!super.equals(o)) return false;
+    NearestGeometryQuery that = (NearestGeometryQuery) o;
+    return k == that.k && from.equals(that.from) && nearest.fieldName.equals(that.nearest.fieldName)
+        && (filter == null ? that.filter == null : filter.equals(that.filter));
+  }
+
+  @Override
+  public int hashCode() {
+    int h = 31 * (31 * (31 * super.hashCode() + nearest.fieldName.hashCode()) + from.hashCode()) + k;
+    return 31 * h + (filter == null ? 0 : filter.hashCode());
+  }
+}
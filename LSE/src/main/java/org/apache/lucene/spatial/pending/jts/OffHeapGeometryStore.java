@@ -0,0 +1,402 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+import com.vividsolutions.jts.io.ParseException;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.SegmentReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the decoded coordinates of each segment in direct (off-heap)
+ * buffers, so the geometries of a large index are not resident on the Java
+ * heap between queries.
+ * <p/>
+ * A segment is decoded once, the first time it is asked for, into chunks of
+ * up to {@link #CHUNK_SIZE} bytes; the offset of each document is off-heap
+ * too.  Each read makes a small Geometry whose sequences are
+ * {@link BufferCoordinateSequence} views over the buffers.  Tests that only
+ * walk the coordinates read them in place, but JTS copies a sequence into a
+ * Coordinate[] for relate, distance and noding, so documents that reach the
+ * exact test still make short-lived garbage.
+ * <p/>
+ * The store has a byte budget.  A segment is measured before anything is
+ * allocated, and one that does not fit is left out: reads of it decode from
+ * DocValues as without the store, until its core closes.  Direct memory is
+ * only given back when the garbage collector finds a buffer unreachable, so
+ * keep the budget below -XX:MaxDirectMemorySize.
+ * <p/>
+ * Layout of one geometry, native byte order:
+ * <pre>
+ *   int type (WKB numbers)
+ *   Point, LineString:  int count, count * (double x, double y)
+ *   Polygon:            int rings, per ring: int count, count * (x, y)
+ *   Multi and GeometryCollection: int count, count * geometry
+ * </pre>
+ */
+public class OffHeapGeometryStore {
+
+  static final Logger log = LoggerFactory.getLogger(OffHeapGeometryStore.class);
+
+  public static final int CHUNK_SIZE = 1 << 26;
+
+  /** half of the heap limit, which is also the default direct memory limit */
+  public static final long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 2;
+
+  final long maxBytes;
+  long bytes = 0;
+
+  final Map<GeometryCache.Key, Segment> segments = new HashMap<GeometryCache.Key, Segment>();
+
+  private final SegmentReader.CoreClosedListener purgeCore = new SegmentReader.CoreClosedListener() {
+    @Override
+    public void onClose(Object ownerCoreCacheKey) {
+      purge(ownerCoreCacheKey);
+    }
+  };
+
+  public OffHeapGeometryStore(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the stored geometries of the field in the segment, or null if it
+   *         has none or does not fit in the budget
+   */
+  public Segment get(AtomicReader reader, String fieldName, GeometryFactory factory) throws IOException {
+    GeometryCache.Key key = new GeometryCache.Key(reader.getCoreCacheKey(), fieldName);
+    synchronized (this) {
+      Segment segment = segments.get(key);
+      if (segment != null || segments.containsKey(key)) {
+        return segment;
+      }
+    }
+    GeometryDocValues values = GeometryDocValues.get(reader, fieldName, factory);
+    Segment segment = null;
+    if (values != null) {
+      Layout layout = new Layout(values, reader.maxDoc());
+      if (reserve(layout.bytes)) {
+        segment = new Segment(values, layout, factory);
+      }
+      else {
+        log.warn("Segment of " + fieldName + " needs " + layout.bytes + " bytes, more than is left of "
+            + maxBytes + "; it is decoded from DocValues instead");
+      }
+    }
+    synchronized (this) {
+      if (!segments.containsKey(key)) {
+        segments.put(key, segment);
+        GeometryCache.addCoreClosedListener(reader, purgeCore);
+      }
+      else if (segment != null) {
+        bytes -= segment.bytesUsed(); // another thread stored it first
+      }
+      return segments.get(key);
+    }
+  }
+
+  private synchronized boolean reserve(long size) {
+    if (bytes + size > maxBytes) {
+      return false;
+    }
+    bytes += size;
+    return true;
+  }
+
+  public synchronized void purge(Object coreCacheKey) {
+    Iterator<Map.Entry<GeometryCache.Key, Segment>> it = segments.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<GeometryCache.Key, Segment> e = it.next();
+      if (e.getKey().core == coreCacheKey) {
+        if (e.getValue() != null) {
+          bytes -= e.getValue().bytesUsed();
+        }
+        it.remove();
+      }
+    }
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @return the direct memory the segments hold
+   */
+  public synchronized long bytesUsed() {
+    return bytes;
+  }
+
+  /**
+   * The size of every geometry of a segment, and the chunks they go in.
+   * Measuring decodes the segment once more, but nothing is allocated for a
+   * segment that does not fit.
+   */
+  static class Layout {
+    final int[] sizes; // 0 for no geometry
+    final long bytes;
+
+    Layout(GeometryDocValues values, int maxDoc) {
+      sizes = new int[maxDoc];
+      long total = 0;
+      for (int docID = 0; docID < maxDoc; docID++) {
+        Geometry geo = read(values, docID);
+        if (geo != null) {
+          sizes[docID] = sizeOf(geo);
+          total += sizes[docID];
+        }
+      }
+      long chunks = 0;
+      int room = 0;
+      for (int size : sizes) {
+        if (size > room) {
+          int capacity = chunkSize(size, total);
+          chunks += capacity;
+          room = capacity;
+        }
+        room -= size;
+        total -= size;
+      }
+      this.bytes = chunks + maxDoc * 8L;
+    }
+
+    /**
+     * @param remaining the bytes of this geometry and all after it
+     */
+    static int chunkSize(int size, long remaining) {
+      return (int) Math.max(size, Math.min(CHUNK_SIZE, remaining));
+    }
+  }
+
+  static Geometry read(GeometryDocValues values, int docID) {
+    if (!values.exists(docID)) {
+      return null;
+    }
+    try {
+      return values.getGeometry(docID);
+    }
+    catch (ParseException ex) {
+      log.warn("error reading indexed geometry", ex);
+      return null;
+    }
+  }
+
+  /**
+   * The geometries of one field in one segment
+   */
+  public static class Segment {
+    final GeometryFactory factory;
+    final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    // chunk << 32 | position, or -1 for no geometry
+    final LongBuffer offsets;
+
+    Segment(GeometryDocValues values, Layout layout, GeometryFactory factory) {
+      int maxDoc = layout.sizes.length;
+      this.factory = new GeometryFactory(factory.getPrecisionModel(), factory.getSRID(),
+          PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+      this.offsets = ByteBuffer.allocateDirect(maxDoc * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+
+      long remaining = 0;
+      for (int size : layout.sizes) {
+        remaining += size;
+      }
+      ByteBuffer chunk = null;
+      for (int docID = 0; docID < maxDoc; docID++) {
+        offsets.put(docID, -1);
+        int size = layout.sizes[docID];
+        if (size == 0) {
+          continue;
+        }
+        if (chunk == null || chunk.remaining() < size) {
+          chunk = ByteBuffer.allocateDirect(Layout.chunkSize(size, remaining)).order(ByteOrder.nativeOrder());
+          chunks.add(chunk);
+        }
+        remaining -= size;
+        Geometry geo = read(values, docID);
+        offsets.put(docID, ((long) (chunks.size() - 1) << 32) | chunk.position());
+        write(chunk, geo);
+      }
+    }
+
+    /**
+     * @return a view of the document's geometry, or null if it has none
+     */
+    public Geometry get(int docID) {
+      long offset = offsets.get(docID);
+      if (offset < 0) {
+        return null;
+      }
+      return new Reader(chunks.get((int) (offset >>> 32)), (int) offset).readGeometry();
+    }
+
+    public long bytesUsed() {
+      long bytes = offsets.capacity() * 8L;
+      for (ByteBuffer chunk : chunks) {
+        bytes += chunk.capacity();
+      }
+      return bytes;
+    }
+
+    /**
+     * Reads one geometry with absolute gets, so readers can share a buffer
+     */
+    class Reader {
+      final ByteBuffer buf;
+      int pos;
+
+      Reader(ByteBuffer buf, int pos) {
+        this.buf = buf;
+        this.pos = pos;
+      }
+
+      int readInt() {
+        int v = buf.getInt(pos);
+        pos += 4;
+        return v;
+      }
+
+      CoordinateSequence readCoordinates() {
+        int count = readInt();
+        CoordinateSequence seq = new BufferCoordinateSequence(buf, pos, count);
+        pos += count * 16;
+        return seq;
+      }
+
+      Geometry readGeometry() {
+        int type = readInt();
+        switch (type) {
+          case BytesRefWKBReader.WKB_POINT: {
+            CoordinateSequence seq = readCoordinates();
+            return factory.createPoint(seq.size() == 0 ? null : seq);
+          }
+          case BytesRefWKBReader.WKB_LINESTRING:
+            return factory.createLineString(readCoordinates());
+          case BytesRefWKBReader.WKB_POLYGON: {
+            int rings = readInt();
+            if (rings == 0) {
+              return factory.createPolygon(null, null);
+            }
+            LinearRing shell = factory.createLinearRing(readCoordinates());
+            LinearRing[] holes = new LinearRing[rings - 1];
+            for (int i = 0; i < holes.length; i++) {
+              holes[i] = factory.createLinearRing(readCoordinates());
+            }
+            return factory.createPolygon(shell, holes);
+          }
+          case BytesRefWKBReader.WKB_MULTIPOINT: {
+            Point[] points = new Point[readInt()];
+            for (int i = 0; i < points.length; i++) {
+              points[i] = (Point) readGeometry();
+            }
+            return factory.createMultiPoint(points);
+          }
+          case BytesRefWKBReader.WKB_MULTILINESTRING: {
+            LineString[] lines = new LineString[readInt()];
+            for (int i = 0; i < lines.length; i++) {
+              lines[i] = (LineString) readGeometry();
+            }
+            return factory.createMultiLineString(lines);
+          }
+          case BytesRefWKBReader.WKB_MULTIPOLYGON: {
+            Polygon[] polys = new Polygon[readInt()];
+            for (int i = 0; i < polys.length; i++) {
+              polys[i] = (Polygon) readGeometry();
+            }
+            return factory.createMultiPolygon(polys);
+          }
+          default: {
+            Geometry[] geoms = new Geometry[readInt()];
+            for (int i = 0; i < geoms.length; i++) {
+              geoms[i] = readGeometry();
+            }
+            return factory.createGeometryCollection(geoms);
+          }
+        }
+      }
+    }
+  }
+
+  static int sizeOf(Geometry geo) {
+    if (geo instanceof Point || geo instanceof LineString) {
+      return 8 + 16 * geo.getNumPoints();
+    }
+    if (geo instanceof Polygon) {
+      Polygon poly = (Polygon) geo;
+      return 8 + 4 * (poly.isEmpty() ? 0 : poly.getNumInteriorRing() + 1) + 16 * geo.getNumPoints();
+    }
+    int size = 8;
+    for (int i = 0; i < geo.getNumGeometries(); i++) {
+      size += sizeOf(geo.getGeometryN(i));
+    }
+    return size;
+  }
+
+  static void write(ByteBuffer buf, Geometry geo) {
+    buf.putInt(CompactGeometryWriter.getType(geo));
+    if (geo instanceof Point) {
+      writeCoordinates(buf, ((Point) geo).getCoordinateSequence());
+    }
+    else if (geo instanceof LineString) {
+      writeCoordinates(buf, ((LineString) geo).getCoordinateSequence());
+    }
+    else if (geo instanceof Polygon) {
+      Polygon poly = (Polygon) geo;
+      if (poly.isEmpty()) {
+        buf.putInt(0);
+        return;
+      }
+      buf.putInt(poly.getNumInteriorRing() + 1);
+      writeCoordinates(buf, poly.getExteriorRing().getCoordinateSequence());
+      for (int i = 0; i < poly.getNumInteriorRing(); i++) {
+        writeCoordinates(buf, poly.getInteriorRingN(i).getCoordinateSequence());
+      }
+    }
+    else {
+      buf.putInt(geo.getNumGeometries());
+      for (int i = 0; i < geo.getNumGeometries(); i++) {
+        write(buf, geo.getGeometryN(i));
+      }
+    }
+  }
+
+  private static void writeCoordinates(ByteBuffer buf, CoordinateSequence seq) {
+    buf.putInt(seq.size());
+    for (int i = 0; i < seq.size(); i++) {
+      buf.putDouble(seq.getX(i));
+      buf.putDouble(seq.getY(i));
+    }
+  }
+}
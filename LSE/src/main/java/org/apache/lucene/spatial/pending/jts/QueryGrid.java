@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+
+import java.util.ArrayDeque;
+
+/**
+ * Quad cells over an areal query shape's envelope, each one inside the
+ * shape's interior, outside the shape or on its boundary.  Boundary cells are
+ * split in four, breadth first, until the cell budget or the levels run out.
+ * The cells are plain JTS envelopes of the shape's own coordinates, so a
+ * shape that goes past the world bounds (as spatial4j keeps one across the
+ * dateline, or a circle polygon near a pole) gets a grid like any other.
+ * <p/>
+ * {@link #classify(Envelope)} tells if a document envelope only touches
+ * inside or only outside cells, without a JTS call.  It is immutable once
+ * built, so it can be shared by threads.
+ */
+public class QueryGrid {
+
+  public static final int INSIDE = 1;
+  public static final int OUTSIDE = 2;
+  public static final int BOUNDARY = 3;
+
+  private static final int NONE = 0;
+
+  final Node root;
+  int numCells = 1;
+
+  /**
+   * @param prepared the areal query shape
+   * @param maxLevels how deep boundary cells may be split
+   * @param maxCells about how many cells to make, at most
+   */
+  public QueryGrid(PreparedGeometry prepared, int maxLevels, int maxCells) {
+    Envelope bounds = prepared.getGeometry().getEnvelopeInternal();
+    GeometryFactory factory = prepared.getGeometry().getFactory();
+
+    this.root = new Node(bounds, 0, prepared, factory);
+    ArrayDeque<Node> split = new ArrayDeque<Node>();
+    if (root.state == BOUNDARY) {
+      split.add(root);
+    }
+    while (!split.isEmpty() && numCells + 4 <= maxCells) {
+      Node node = split.poll();
+      if (node.level >= maxLevels) {
+        continue;
+      }
+      Envelope e = node.env;
+      double midX = (e.getMinX() + e.getMaxX()) / 2;
+      double midY = (e.getMinY() + e.getMaxY()) / 2;
+      Node[] children = {
+          new Node(new Envelope(e.getMinX(), midX, e.getMinY(), midY), node.level + 1, prepared, factory),
+          new Node(new Envelope(midX, e.getMaxX(), e.getMinY(), midY), node.level + 1, prepared, factory),
+          new Node(new Envelope(e.getMinX(), midX, midY, e.getMaxY()), node.level + 1, prepared, factory),
+          new Node(new Envelope(midX, e.getMaxX(), midY, e.getMaxY()), node.level + 1, prepared, factory) };
+      for (Node child : children) {
+        if (child.state == BOUNDARY) {
+          split.add(child);
+        }
+      }
+      node.children = children;
+      numCells += children.length;
+    }
+  }
+
+  /**
+   * @return {@link #INSIDE} if every cell the envelope touches is inside,
+   *         {@link #OUTSIDE} if all of them are outside, else {@link #BOUNDARY}
+   */
+  public int classify(Envelope env) {
+    int state = root.env.covers(env) ? NONE : OUTSIDE; // past the bounding box is outside
+    if (root.env.intersects(env)) {
+      state = merge(state, classify(root, env));
+    }
+    return state == NONE ? BOUNDARY : state;
+  }
+
+  private static int classify(Node node, Envelope env) {
+    if (node.children == null) {
+      return node.state;
+    }
+    int state = NONE;
+    for (Node child : node.children) {
+      if (child.env.intersects(env)) {
+        state = merge(state, classify(child, env));
+        if (state == BOUNDARY) {
+          break;
+        }
+      }
+    }
+    return state;
+  }
+
+  private static int merge(int a, int b) {
+    if (a == NONE) return b;
+    if (b == NONE) return a;
+    return a == b ? a : BOUNDARY;
+  }
+
+  public int getNumCells() {
+    return numCells;
+  }
+
+  static class Node {
+    final Envelope env;
+    final int level;
+    final int state;
+    Node[] children;
+
+    Node(Envelope env, int level, PreparedGeometry prepared, GeometryFactory factory) {
+      this.env = env;
+      this.level = level;
+      // cells are closed, so touching the shape makes a cell a boundary cell
+      if (prepared.containsProperly(factory.toGeometry(env))) {
+        state = INSIDE;
+      }
+      else if (!prepared.intersects(factory.toGeometry(env))) {
+        state = OUTSIDE;
+      }
+      else {
+        state = BOUNDARY;
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.shape.Shape;
+import org.apache.lucene.spatial.query.SpatialOperation;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of query shapes, so the same shape sent over and over
+ * is prepared once.  An entry holds the parsed shape and the
+ * {@link GeometryTest} made for it; testers can be shared by concurrent
+ * searches.
+ * <p/>
+ * The key is the shape string with its whitespace collapsed and in upper
+ * case, the operation and the distErrPct.  Lookups lock the cache briefly;
+ * preparing happens outside the lock, so two threads missing the
+ * same key at once may both build the entry.
+ */
+public class QueryShapeCache {
+
+  final int maxSize;
+  final Map<Key, Entry> map;
+
+  final AtomicLong hits = new AtomicLong();
+  final AtomicLong misses = new AtomicLong();
+  final AtomicLong evictions = new AtomicLong();
+
+  public QueryShapeCache(final int maxSize) {
+    this.maxSize = maxSize;
+    this.map = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        if (size() > maxSize) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public static String normalize(String shape) {
+    return shape.trim().replaceAll("\\s+", " ").toUpperCase(Locale.ROOT);
+  }
+
+  /**
+   * @return the cached entry, or null after counting a miss
+   */
+  public Entry get(Key key) {
+    Entry entry;
+    synchronized (map) {
+      entry = map.get(key);
+    }
+    (entry == null ? misses : hits).incrementAndGet();
+    return entry;
+  }
+
+  public void put(Key key, Entry entry) {
+    synchronized (map) {
+      map.put(key, entry);
+    }
+  }
+
+  public int size() {
+    synchronized (map) {
+      return map.size();
+    }
+  }
+
+  public void clear() {
+    synchronized (map) {
+      map.clear();
+    }
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "QueryShapeCache(size=" + size() + "/" + maxSize + " hits=" + getHits()
+        + " misses=" + getMisses() + " evictions=" + getEvictions() + ")";
+  }
+
+  public static class Key {
+    final String shape;
+    final SpatialOperation op;
+    final double distErrPct;
+
+    /**
+     * @param shape the shape string as given; it is normalized here
+     */
+    public Key(String shape, SpatialOperation op, double distErrPct) {
+      this.shape = normalize(shape);
+      this.op = op;
+      this.distErrPct = distErrPct;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key that = (Key) o;
+      return shape.equals(that.shape) && op.equals(that.op) && distErrPct == that.distErrPct;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = shape.hashCode();
+      result = 31 * result + op.hashCode();
+      long temp = Double.doubleToLongBits(distErrPct);
+      result = 31 * result + (int) (temp ^ (temp >>> 32));
+      return result;
+    }
+  }
+
+  public static class Entry {
+    public final Shape shape;
+    public final SpatialOperation op;
+    public final GeometryTest tester;
+    public final double distErr;
+
+    public Entry(Shape shape, SpatialOperation op, GeometryTest tester, double distErr) {
+      this.shape = shape;
+      this.op = op;
+      this.tester = tester;
+      this.distErr = distErr;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * Finds a {@link TopologyPreservingSimplifier} tolerance that brings a
+ * geometry within a vertex budget or an encoded size, with a bounded number
+ * of simplifications.
+ * <p/>
+ * The vertex count falls roughly as a power of the tolerance, so each probe
+ * interpolates between the closest tolerances above and below the budget
+ * in log-log space, and bisects when that does not narrow the bracket.  It
+ * stops at a result within {@link #SLACK} of the budget, or after
+ * {@link #MAX_PROBES}.  A byte size is turned into a vertex budget with the
+ * bytes per vertex of the input, and only the final geometry is encoded;
+ * if that is still too big, the budget shrinks by the overshoot and it tries
+ * again, up to {@link #MAX_ROUNDS} times.
+ * <p/>
+ * The result has the same topology guarantees as TopologyPreservingSimplifier,
+ * and no point is further than {@link #getTolerance()} from the input.
+ */
+public class SizeTargetedSimplifier {
+
+  public static final int MAX_PROBES = 12;
+  public static final int MAX_ROUNDS = 3;
+  /** a result with at least (1 - SLACK) * budget vertices is good enough */
+  public static final double SLACK = 0.1;
+
+  /**
+   * Measures an encoded geometry, e.g. its WKB or WKT length
+   */
+  public interface Sizer {
+    public int sizeOf(Geometry geo);
+  }
+
+  final Geometry geo;
+  final double extent;
+  double tolerance = 0;
+  int probes = 0;
+
+  public SizeTargetedSimplifier(Geometry geo) {
+    this.geo = geo;
+    Envelope env = geo.getEnvelopeInternal();
+    this.extent = Math.max(env.getWidth(), env.getHeight());
+  }
+
+  /**
+   * @return the tolerance the last result was simplified with, 0 if it is the input
+   */
+  public double getTolerance() {
+    return tolerance;
+  }
+
+  /**
+   * @return how many simplifications were run so far
+   */
+  public int getProbes() {
+    return probes;
+  }
+
+  /**
+   * @return the least simplified geometry found with at most maxPoints
+   *         vertices, or the most simplified one if none was that small
+   */
+  public Geometry simplifyToPoints(int maxPoints) {
+    int points = geo.getNumPoints();
+    tolerance = 0;
+    if (points <= maxPoints || extent <= 0) {
+      return geo;
+    }
+
+    double lo = 0;                  // too many points
+    double loPoints = points;
+    double hi = Double.NaN;         // small enough
+    double hiPoints = 0;
+    Geometry best = null;
+    double bestTolerance = 0;
+    Geometry last = geo;
+    double lastTolerance = 0;
+
+    double t = extent / maxPoints;
+    for (int i = 0; i < MAX_PROBES; i++) {
+      Geometry simple = TopologyPreservingSimplifier.simplify(geo, t);
+      probes++;
+      int p = simple.getNumPoints();
+      last = simple;
+      lastTolerance = t;
+      if (p <= maxPoints) {
+        hi = t;
+        hiPoints = p;
+        best = simple;
+        bestTolerance = t;
+        if (p >= maxPoints * (1 - SLACK)) {
+          break;
+        }
+      }
+      else {
+        lo = t;
+        loPoints = p;
+      }
+      t = next(lo, loPoints, hi, hiPoints, maxPoints);
+      if (!(t > 0) || Double.isInfinite(t)) {
+        break;
+      }
+    }
+    if (best == null) {
+      tolerance = lastTolerance;
+      return last;
+    }
+    tolerance = bestTolerance;
+    return best;
+  }
+
+  private double next(double lo, double loPoints, double hi, double hiPoints, int target) {
+    if (Double.isNaN(hi)) {
+      // not small enough yet: extrapolate, at least doubling
+      return lo * Math.max(2, Math.sqrt(loPoints / target));
+    }
+    if (lo == 0) {
+      return hi / 2;
+    }
+    double t = hi;
+    if (hiPoints > 0 && loPoints > hiPoints) {
+      double f = (Math.log(loPoints) - Math.log(target)) / (Math.log(loPoints) - Math.log(hiPoints));
+      t = Math.exp(Math.log(lo) + f * (Math.log(hi) - Math.log(lo)));
+    }
+    if (!(t > lo && t < hi) || t / lo < 1.001 || hi / t < 1.001) {
+      t = Math.sqrt(lo * hi);
+    }
+    return t;
+  }
+
+  /**
+   * @param maxBytes the size to stay under
+   * @param size the size of the input, as the sizer measures it
+   * @return a geometry smaller than maxBytes, or the smallest one found
+   */
+  public Geometry simplifyToSize(int maxBytes, int size, Sizer sizer) {
+    if (size < maxBytes) {
+      tolerance = 0;
+      return geo;
+    }
+    double bytesPerPoint = (double) size / Math.max(1, geo.getNumPoints());
+    int maxPoints = (int) (maxBytes / bytesPerPoint);
+    Geometry simple = geo;
+    for (int round = 0; round < MAX_ROUNDS && maxPoints > 0; round++) {
+      simple = simplifyToPoints(maxPoints);
+      int s = sizer.sizeOf(simple);
+      if (s < maxBytes) {
+        break;
+      }
+      maxPoints = (int) (maxPoints * (1 - SLACK) * maxBytes / s);
+    }
+    return simple;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.shape.Rectangle;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Maps a point to its position along a curve through a 2^31 by 2^31 grid
+ * over the world bounds.  Sorting documents by it puts nearby geometries at
+ * nearby docIDs.  The Hilbert curve keeps neighbours closer together; the
+ * Z-order curve is a bit cheaper to compute.
+ */
+public enum SpaceFillingCurve {
+
+  HILBERT {
+    @Override
+    public long encode(long x, long y) {
+      long n = 1L << ORDER;
+      long d = 0;
+      for (long s = 1L << (ORDER - 1); s > 0; s >>>= 1) {
+        int rx = (x & s) != 0 ? 1 : 0;
+        int ry = (y & s) != 0 ? 1 : 0;
+        d += s * s * ((3 * rx) ^ ry);
+        // rotate the quadrant
+        if (ry == 0) {
+          if (rx == 1) {
+            x = n - 1 - x;
+            y = n - 1 - y;
+          }
+          long t = x;
+          x = y;
+          y = t;
+        }
+      }
+      return d;
+    }
+  },
+
+  ZORDER {
+    @Override
+    public long encode(long x, long y) {
+      return spread(x) | (spread(y) << 1);
+    }
+  };
+
+  /** bits per axis */
+  public static final int ORDER = 31;
+
+  /** the key of documents without an envelope; they sort last */
+  public static final long NO_KEY = Long.MAX_VALUE;
+
+  /**
+   * @param x cell column, 0 to 2^{@link #ORDER} - 1
+   * @param y cell row, 0 to 2^{@link #ORDER} - 1
+   * @return the position of the cell along the curve
+   */
+  public abstract long encode(long x, long y);
+
+  /**
+   * @return the key of the center of the envelope, or {@link #NO_KEY} if it is null
+   */
+  public long key(Envelope env, Rectangle bounds) {
+    if (env.isNull()) {
+      return NO_KEY;
+    }
+    return encode(cell((env.getMinX() + env.getMaxX()) / 2, bounds.getMinX(), bounds.getMaxX()),
+        cell((env.getMinY() + env.getMaxY()) / 2, bounds.getMinY(), bounds.getMaxY()));
+  }
+
+  static long cell(double v, double min, double max) {
+    long maxCell = (1L << ORDER) - 1;
+    long c = (long) ((v - min) / (max - min) * (maxCell + 1));
+    return Math.max(0, Math.min(maxCell, c));
+  }
+
+  /**
+   * Put a zero bit between each of the low 31 bits
+   */
+  static long spread(long v) {
+    v &= 0x7fffffffL;
+    v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+    v = (v | (v << 8)) & 0x00ff00ff00ff00ffL;
+    v = (v | (v << 4)) & 0x0f0f0f0f0f0f0f0fL;
+    v = (v | (v << 2)) & 0x3333333333333333L;
+    v = (v | (v << 1)) & 0x5555555555555555L;
+    return v;
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.algorithm.locate.SimplePointInAreaLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+import java.util.Arrays;
+
+/**
+ * Finds the point of a lon/lat geometry nearest to a fixed point on the
+ * sphere.  Edges are the straight lines between their vertices in lon/lat,
+ * as JTS and the indexed envelopes see them, not great circle arcs, so the
+ * nearest point always lies within the envelope of its geometry.  The fixed
+ * point's longitude is taken modulo 360, so a geometry just across the
+ * dateline from it is near.
+ * <p/>
+ * Closeness is the cosine of the angle to the point.  Along an edge it is a
+ * sum of sinusoids whose second derivative is bounded, so the edge is split
+ * in halves, and a half is dropped once that bound shows it can not beat the
+ * nearest point found so far.
+ * <p/>
+ * It keeps the last nearest point, so use one instance per thread.
+ */
+public class SphericalNearest {
+
+  /** halves are split until their bound is this close to their ends */
+  static final double EPS = 1e-14;
+
+  final double lon;
+  final double lat;
+  final double lambda;
+  final double sinPhi;
+  final double cosPhi;
+
+  // the last search
+  double best;
+  double nearestX;
+  double nearestY;
+
+  // halves still to look at: t0, g0, t1, g1
+  private double[] stack = new double[4 * 64];
+
+  public SphericalNearest(double lon, double lat) {
+    this.lon = lon;
+    this.lat = lat;
+    this.lambda = Math.toRadians(lon);
+    this.sinPhi = Math.sin(Math.toRadians(lat));
+    this.cosPhi = Math.cos(Math.toRadians(lat));
+  }
+
+  /**
+   * @return the cosine of the angle between the point and x,y
+   */
+  double closeness(double x, double y) {
+    double phi = Math.toRadians(y);
+    return cosPhi * Math.cos(phi) * Math.cos(Math.toRadians(x) - lambda) + sinPhi * Math.sin(phi);
+  }
+
+  /**
+   * Find the nearest point of the geometry: the point itself if an areal
+   * geometry holds it, else on a vertex or edge.
+   *
+   * @return false if the geometry is empty
+   */
+  public boolean nearest(Geometry geo) {
+    best = -2;
+    if (geo.isEmpty()) {
+      return false;
+    }
+    if (geo.getDimension() == 2 && contains(geo)) {
+      best = 1;
+      nearestX = lon;
+      nearestY = lat;
+      return true;
+    }
+    visit(geo, Double.POSITIVE_INFINITY);
+    return true;
+  }
+
+  /**
+   * @param cosRadius the cosine of the radius
+   * @return true if some point of the geometry is within the radius
+   */
+  public boolean isWithin(Geometry geo, double cosRadius) {
+    // edges that can not come within the radius are dropped at once
+    best = cosRadius - EPS;
+    if (geo.isEmpty()) {
+      return false;
+    }
+    return visit(geo, cosRadius) || (geo.getDimension() == 2 && contains(geo));
+  }
+
+  /**
+   * @return true if some vertex of the geometry is within the radius
+   */
+  public boolean isVertexWithin(Geometry geo, double cosRadius) {
+    best = cosRadius - EPS;
+    return visit(geo, cosRadius, false);
+  }
+
+  /**
+   * @return the longitude of the point found by {@link #nearest}, in the geometry's range
+   */
+  public double getNearestX() {
+    return nearestX;
+  }
+
+  public double getNearestY() {
+    return nearestY;
+  }
+
+  /**
+   * @return the cosine of the angle to the point found by {@link #nearest}
+   */
+  public double getCloseness() {
+    return best;
+  }
+
+  private boolean contains(Geometry geo) {
+    Envelope env = geo.getEnvelopeInternal();
+    if (lat < env.getMinY() || lat > env.getMaxY()) {
+      return false;
+    }
+    for (int k = -1; k <= 1; k++) {
+      double x = lon + 360 * k;
+      if (x >= env.getMinX() && x <= env.getMaxX()
+          && SimplePointInAreaLocator.locate(new Coordinate(x, lat), geo) != Location.EXTERIOR) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean visit(Geometry geo, double stopAt) {
+    return visit(geo, stopAt, true);
+  }
+
+  /**
+   * @return true as soon as something is at least stopAt close
+   */
+  private boolean visit(Geometry geo, double stopAt, boolean edges) {
+    if (geo instanceof Point) {
+      return sequence(((Point) geo).getCoordinateSequence(), false, stopAt);
+    }
+    if (geo instanceof LineString) {
+      return sequence(((LineString) geo).getCoordinateSequence(), edges, stopAt);
+    }
+    if (geo instanceof Polygon) {
+      Polygon poly = (Polygon) geo;
+      if (sequence(poly.getExteriorRing().getCoordinateSequence(), edges, stopAt)) {
+        return true;
+      }
+      for (int i = 0; i < poly.getNumInteriorRing(); i++) {
+        if (sequence(poly.getInteriorRingN(i).getCoordinateSequence(), edges, stopAt)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    for (int i = 0; i < geo.getNumGeometries(); i++) {
+      if (visit(geo.getGeometryN(i), stopAt, edges)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean sequence(CoordinateSequence seq, boolean edges, double stopAt) {
+    double px = 0, py = 0, pg = 0;
+    for (int i = 0; i < seq.size(); i++) {
+      double x = seq.getX(i);
+      double y = seq.getY(i);
+      double g = closeness(x, y);
+      if (g > best) {
+        best = g;
+        nearestX = x;
+        nearestY = y;
+      }
+      if (best >= stopAt) {
+        return true;
+      }
+      if (edges && i > 0 && edge(px, py, pg, x, y, g, stopAt)) {
+        return true;
+      }
+      px = x;
+      py = y;
+      pg = g;
+    }
+    return false;
+  }
+
+  /**
+   * Look for a point of the edge closer than the best so far.  Along the
+   * edge, closeness is cosPhi * cos(lat) * cos(lon - lambda) + sinPhi * sin(lat)
+   * with lat and lon linear in t, so its second derivative is at most
+   * |cosPhi| (b^2 + d^2) + |sinPhi| b^2 for b, d the changes of lat and lon in
+   * radians.  Over a half of length h it then exceeds the higher end by at
+   * most that times h^2 / 8.
+   *
+   * @return true as soon as a point is at least stopAt close
+   */
+  boolean edge(double ax, double ay, double ga, double bx, double by, double gb, double stopAt) {
+    double b = Math.toRadians(by - ay);
+    double d = Math.toRadians(bx - ax);
+    double m = (Math.abs(cosPhi) * (b * b + d * d) + Math.abs(sinPhi) * b * b) / 8;
+    if (Math.max(ga, gb) + m <= best || m <= EPS) {
+      return false;
+    }
+    double[] s = stack;
+    push(s, 0, 0, ga, 1, gb);
+    int top = 4;
+    while (top > 0) {
+      top -= 4;
+      double t0 = s[top], g0 = s[top + 1], t1 = s[top + 2], g1 = s[top + 3];
+      double h = t1 - t0;
+      double slack = m * h * h;
+      if (Math.max(g0, g1) + slack <= best || slack <= EPS) {
+        continue;
+      }
+      double t = (t0 + t1) / 2;
+      double x = ax + t * (bx - ax);
+      double y = ay + t * (by - ay);
+      double g = closeness(x, y);
+      if (g > best) {
+        best = g;
+        nearestX = x;
+        nearestY = y;
+        if (best >= stopAt) {
+          return true;
+        }
+      }
+      if (top + 8 > s.length) {
+        s = stack = Arrays.copyOf(s, s.length * 2);
+      }
+      // the half nearer the higher end goes first
+      if (g0 > g1) {
+        push(s, top, t, g, t1, g1);
+        push(s, top + 4, t0, g0, t, g);
+      }
+      else {
+        push(s, top, t0, g0, t, g);
+        push(s, top + 4, t, g, t1, g1);
+      }
+      top += 8;
+    }
+    return false;
+  }
+
+  private static void push(double[] s, int top, double t0, double g0, double t1, double g1) {
+    s[top] = t0;
+    s[top + 1] = g0;
+    s[top + 2] = t1;
+    s[top + 3] = g1;
+  }
+}
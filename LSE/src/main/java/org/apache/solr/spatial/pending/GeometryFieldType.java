@@ -17,28 +17,307 @@
 package org.apache.solr.spatial.pending;
 
 import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.distance.DistanceUtils;
+import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Shape;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.spatial.pending.jts.GeometryCache;
 import org.apache.lucene.spatial.pending.jts.JtsGeoStrategy;
+import org.apache.lucene.spatial.pending.jts.OffHeapGeometryStore;
+import org.apache.lucene.spatial.pending.jts.QueryShapeCache;
+import org.apache.lucene.spatial.pending.jts.SpaceFillingCurve;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.schema.AbstractSpatialFieldType;
 import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SpatialOptions;
+import org.apache.solr.util.SpatialUtils;
 
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Map;
 
 
 /**
  * This is here because the dependency tree needs work!
+ * <p/>
+ * Schema args:
+ * <ul>
+ *   <li>storage: "sorted" (default) or "binary" DocValues, see {@link JtsGeoStrategy.Storage};
+ *       changing it needs a new field name or an empty index</li>
+ *   <li>encoding: "wkb" (default) or "compact", see {@link JtsGeoStrategy.Encoding}</li>
+ *   <li>parallelism: threads used to test one large segment, default 0 (off); all
+ *       fields and cores with the same parallelism share one pool of daemon
+ *       threads, which is never shut down (see {@link JtsGeoStrategy#getSharedPool})</li>
+ *   <li>parallelMinDocs: smallest segment that is split, default 100000</li>
+ *   <li>distanceToCentroid: score=distance measures to the centroid instead of the nearest edge</li>
+ *   <li>lodPoints: vertex budget of a coarse level of detail kept for large geometries, default 0 (none)</li>
+ *   <li>queryCacheSize: how many parsed and prepared query shapes to keep, default 0 (none)</li>
+ *   <li>geometryCacheMB: memory for decoded geometries kept between queries, default 0 (none)</li>
+ *   <li>envelopeIndex: keep an STR-tree of the envelopes of each segment for filters, default false;
+ *   geoknn searches keep them regardless</li>
+ *   <li>offHeap: keep decoded coordinates of each segment in direct buffers, default false</li>
+ *   <li>offHeapMB: direct memory the fields of this type may use with offHeap, default half the max heap</li>
+ *   <li>tilePoints: clip geometries with more vertices into fragments of at most this many, default 0 (off)</li>
+ *   <li>tileBytes: also split fragments until they encode to at most this many bytes, default 16384</li>
+ *   <li>sortCurve: "hilbert" or "zorder" to index a sort key for {@link SpatialSortingMergePolicy}, default none</li>
+ * </ul>
+ * With storage="binary", docValuesFormat="Geometry" and the SchemaCodecFactory
+ * the geometries are written block compressed, with per-block envelopes; see
+ * {@link org.apache.lucene.spatial.pending.jts.GeometryDocValuesFormat}.
+ * <p/>
+ * The hit rates and sizes of the caches show in the CACHE section of the
+ * core's statistics (admin plugins page and JMX), for field types loaded
+ * with the core.
  */
-public class GeometryFieldType extends AbstractSpatialFieldType<JtsGeoStrategy> {
+public class GeometryFieldType extends AbstractSpatialFieldType<JtsGeoStrategy> implements SolrInfoMBean {
+
+  private JtsGeoStrategy.Storage storage = JtsGeoStrategy.Storage.SORTED;
+  private JtsGeoStrategy.Encoding encoding = JtsGeoStrategy.Encoding.WKB;
+  private int parallelism = 0;
+  private int parallelMinDocs = 100000;
+  private boolean distanceToCentroid = false;
+  private int lodPoints = 0;
+  private QueryShapeCache queryCache;
+  private GeometryCache geometryCache;
+  private boolean envelopeIndex = false;
+  private OffHeapGeometryStore offHeapStore;
+  private int tilePoints = 0;
+  private int tileBytes = 1 << 14;
+  private SpaceFillingCurve sortCurve;
 
   @Override
   protected void init(IndexSchema schema, Map<String, String> args) {
+    String v = args.remove("storage");
+    if (v != null) {
+      storage = parseEnum(JtsGeoStrategy.Storage.class, "storage", v);
+    }
+    v = args.remove("encoding");
+    if (v != null) {
+      encoding = parseEnum(JtsGeoStrategy.Encoding.class, "encoding", v);
+    }
+    v = args.remove("parallelism");
+    if (v != null) {
+      parallelism = Integer.parseInt(v);
+    }
+    v = args.remove("parallelMinDocs");
+    if (v != null) {
+      parallelMinDocs = Integer.parseInt(v);
+    }
+    v = args.remove("distanceToCentroid");
+    if (v != null) {
+      distanceToCentroid = Boolean.parseBoolean(v);
+    }
+    v = args.remove("lodPoints");
+    if (v != null) {
+      lodPoints = Integer.parseInt(v);
+    }
+    v = args.remove("queryCacheSize");
+    if (v != null && Integer.parseInt(v) > 0) {
+      queryCache = new QueryShapeCache(Integer.parseInt(v));
+    }
+    v = args.remove("geometryCacheMB");
+    if (v != null && Double.parseDouble(v) > 0) {
+      geometryCache = new GeometryCache((long) (Double.parseDouble(v) * 1024 * 1024));
+    }
+    v = args.remove("envelopeIndex");
+    if (v != null) {
+      envelopeIndex = Boolean.parseBoolean(v);
+    }
+    v = args.remove("offHeap");
+    String mb = args.remove("offHeapMB");
+    if (v != null && Boolean.parseBoolean(v)) {
+      offHeapStore = new OffHeapGeometryStore(mb == null
+          ? OffHeapGeometryStore.DEFAULT_MAX_BYTES : (long) (Double.parseDouble(mb) * 1024 * 1024));
+    }
+    v = args.remove("tilePoints");
+    if (v != null) {
+      tilePoints = Integer.parseInt(v);
+    }
+    v = args.remove("tileBytes");
+    if (v != null) {
+      tileBytes = Integer.parseInt(v);
+    }
+    v = args.remove("sortCurve");
+    if (v != null) {
+      sortCurve = parseEnum(SpaceFillingCurve.class, "sortCurve", v);
+    }
+
     super.init(schema, args);
 
     //TODO instead set via args.put(...) before init()
     ctx = JtsSpatialContext.GEO;
   }
 
+  /**
+   * @return the constant named by the arg value, in any case
+   */
+  private static <E extends Enum<E>> E parseEnum(Class<E> type, String arg, String value) {
+    try {
+      return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+    }
+    catch (IllegalArgumentException ex) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Invalid " + arg + "=\"" + value
+          + "\"; expected one of " + Arrays.toString(type.getEnumConstants()).toLowerCase(Locale.ROOT), ex);
+    }
+  }
+
   @Override
   protected JtsGeoStrategy newSpatialStrategy(String fieldName) {
+    JtsGeoStrategy strategy = createStrategy(fieldName);
+    strategy.setStorage(storage);
+    strategy.setEncoding(encoding);
+    strategy.setParallelism(parallelism);
+    strategy.setParallelMinDocs(parallelMinDocs);
+    strategy.setDistanceToCentroid(distanceToCentroid);
+    strategy.setLodPoints(lodPoints);
+    strategy.setQueryCache(queryCache);
+    strategy.setGeometryCache(geometryCache);
+    strategy.setEnvelopeIndex(envelopeIndex);
+    strategy.setOffHeapStore(offHeapStore);
+    strategy.setTilePoints(tilePoints);
+    strategy.setTileBytes(tileBytes);
+    strategy.setSortCurve(sortCurve);
+    return strategy;
+  }
+
+  /**
+   * @return the strategy before the schema args are applied
+   */
+  protected JtsGeoStrategy createStrategy(String fieldName) {
     return new JtsGeoStrategy((JtsSpatialContext)ctx, fieldName);
   }
+
+  /**
+   * @return the query shape cache shared by the fields of this type, or null
+   */
+  public QueryShapeCache getQueryCache() {
+    return queryCache;
+  }
+
+  /**
+   * @return the decoded geometry cache shared by the fields of this type, or null
+   */
+  public GeometryCache getGeometryCache() {
+    return geometryCache;
+  }
+
+  /**
+   * Unscored queries are parsed by the usual SpatialArgsParser.  With a query
+   * cache, the shape prepared for their operation, shape string and
+   * distErrPct is reused.
+   */
+  @Override
+  public Query getFieldQuery(QParser parser, SchemaField field, String externalVal) {
+    if (isScored(parser)) {
+      return super.getFieldQuery(parser, field, externalVal);
+    }
+    SpatialArgs spatialArgs = parseSpatialArgs(externalVal);
+    if (queryCache != null) {
+      // the shape string as SpatialArgsParser cut it out
+      String shape = externalVal.substring(externalVal.indexOf('(') + 1, externalVal.lastIndexOf(')'));
+      return new GeometryFilterQuery(getStrategy(field.getName()).makeFilter(spatialArgs, shape));
+    }
+    return newFilterQuery(field, spatialArgs);
+  }
+
+  /**
+   * Like AbstractSpatialFieldType's, but unscored (geofilt or bbox) queries
+   * become a {@link GeometryFilterQuery}
+   */
+  @Override
+  public Query createSpatialQuery(QParser parser, SpatialOptions options) {
+    if (isScored(parser)) {
+      return super.createSpatialQuery(parser, options);
+    }
+    Point pt = SpatialUtils.parsePointSolrException(options.pointStr, ctx);
+    Shape shape = ctx.makeCircle(pt, DistanceUtils.dist2Degrees(options.distance, options.radius));
+    if (options.bbox) {
+      shape = shape.getBoundingBox();
+    }
+    return newFilterQuery(options.field, new SpatialArgs(SpatialOperation.Intersects, shape));
+  }
+
+  private static boolean isScored(QParser parser) {
+    SolrParams localParams = parser.getLocalParams();
+    String score = (localParams == null ? null : localParams.get(SCORE_PARAM));
+    return !(score == null || "none".equals(score) || "".equals(score));
+  }
+
+  /**
+   * Unscored queries become a {@link GeometryFilterQuery} so they can be used
+   * as a PostFilter.  AbstractSpatialFieldType builds its queries in a
+   * private method, so both of its entry points above are overridden.
+   */
+  private Query newFilterQuery(SchemaField field, SpatialArgs spatialArgs) {
+    return new GeometryFilterQuery(getStrategy(field.getName()).makeFilter(spatialArgs));
+  }
+
+  //////////////////////// SolrInfoMBean methods //////////////////////
+
+  @Override
+  public String getName() {
+    return GeometryFieldType.class.getName() + ":" + getTypeName();
+  }
+
+  @Override
+  public String getVersion() {
+    return "1.0";
+  }
+
+  @Override
+  public String getDescription() {
+    return "Caches of the geometry field type " + getTypeName();
+  }
+
+  @Override
+  public Category getCategory() {
+    return Category.CACHE;
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList<Object> stats = new SimpleOrderedMap<Object>();
+    if (geometryCache != null) {
+      stats.add("geometryCache.ramBytesUsed", geometryCache.ramBytesUsed());
+      stats.add("geometryCache.maxBytes", geometryCache.getMaxBytes());
+      stats.add("geometryCache.hits", geometryCache.getHits());
+      stats.add("geometryCache.misses", geometryCache.getMisses());
+      stats.add("geometryCache.hitratio", geometryCache.getHitRate());
+      stats.add("geometryCache.evictions", geometryCache.getEvictions());
+    }
+    if (offHeapStore != null) {
+      stats.add("offHeap.bytesUsed", offHeapStore.bytesUsed());
+      stats.add("offHeap.maxBytes", offHeapStore.getMaxBytes());
+    }
+    if (queryCache != null) {
+      long hits = queryCache.getHits();
+      long lookups = hits + queryCache.getMisses();
+      stats.add("queryCache.size", queryCache.size());
+      stats.add("queryCache.maxSize", queryCache.getMaxSize());
+      stats.add("queryCache.hits", hits);
+      stats.add("queryCache.lookups", lookups);
+      stats.add("queryCache.hitratio", lookups == 0 ? 0 : (double) hits / lookups);
+      stats.add("queryCache.evictions", queryCache.getEvictions());
+    }
+    return stats;
+  }
 }
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.spatial.pending;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.spatial.pending.jts.GeometryOperationFilter;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.SolrConstantScoreQuery;
+
+import java.io.IOException;
+
+/**
+ * A constant score query over a {@link GeometryOperationFilter} that can also
+ * run as a Solr PostFilter.  With <code>cache=false cost&gt;=100</code>, the
+ * geometry is only tested on documents that made it through the main query
+ * and all the cheaper filters:
+ * <pre>
+ *   fq={!cache=false cost=100}geo:"Intersects(POLYGON(...))"
+ * </pre>
+ */
+public class GeometryFilterQuery extends SolrConstantScoreQuery implements PostFilter {
+
+  final GeometryOperationFilter geoFilter;
+
+  public GeometryFilterQuery(GeometryOperationFilter filter) {
+    super(filter);
+    this.geoFilter = filter;
+  }
+
+  @Override
+  public DelegatingCollector getFilterCollector(IndexSearcher searcher) {
+    return new DelegatingCollector() {
+      GeometryOperationFilter.DocMatcher matcher;
+
+      @Override
+      public void setNextReader(AtomicReaderContext context) throws IOException {
+        matcher = geoFilter.getDocMatcher(context.reader());
+        super.setNextReader(context);
+      }
+
+      @Override
+      public void collect(int doc) throws IOException {
+        if (matcher != null && matcher.matches(doc)) {
+          super.collect(doc);
+        }
+      }
+    };
+  }
+}
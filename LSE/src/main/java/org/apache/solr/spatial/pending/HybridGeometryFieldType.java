@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.spatial.pending;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import org.apache.lucene.spatial.pending.jts.HybridGeoStrategy;
+import org.apache.lucene.spatial.pending.jts.JtsGeoStrategy;
+import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTree;
+import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTreeFactory;
+import org.apache.solr.schema.IndexSchema;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link GeometryFieldType} that also indexes prefix tree cells, so queries
+ * only test the exact geometry of the candidates the cells give.  See
+ * {@link HybridGeoStrategy}.
+ * <p/>
+ * It takes the args of GeometryFieldType, and those of the prefix tree
+ * field types:
+ * <ul>
+ *   <li>prefixTree: "geohash" (default) or "quad"</li>
+ *   <li>maxLevels or maxDistErr: how fine the cells get</li>
+ *   <li>distErrPct: how closely indexed shapes are covered, default 0.025</li>
+ * </ul>
+ */
+public class HybridGeometryFieldType extends GeometryFieldType {
+
+  private final Map<String, String> treeArgs = new HashMap<String, String>();
+  private Double distErrPct;
+  private SpatialPrefixTree grid;
+
+  @Override
+  protected void init(IndexSchema schema, Map<String, String> args) {
+    for (String name : new String[] {SpatialPrefixTreeFactory.PREFIX_TREE,
+        SpatialPrefixTreeFactory.MAX_LEVELS, SpatialPrefixTreeFactory.MAX_DIST_ERR}) {
+      String v = args.remove(name);
+      if (v != null) {
+        treeArgs.put(name, v);
+      }
+    }
+    String v = args.remove("distErrPct");
+    if (v != null) {
+      distErrPct = Double.parseDouble(v);
+    }
+
+    super.init(schema, args);
+
+    // the context is only known after super.init()
+    grid = SpatialPrefixTreeFactory.makeSPT(treeArgs, schema.getResourceLoader().getClassLoader(), ctx);
+  }
+
+  @Override
+  protected JtsGeoStrategy createStrategy(String fieldName) {
+    HybridGeoStrategy strategy = new HybridGeoStrategy((JtsSpatialContext)ctx, fieldName, grid);
+    if (distErrPct != null) {
+      strategy.getCandidateStrategy().setDistErrPct(distErrPct);
+    }
+    return strategy;
+  }
+}
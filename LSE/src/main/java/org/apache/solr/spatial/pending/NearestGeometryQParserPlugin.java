@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.spatial.pending;
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.spatial.pending.jts.JtsGeoStrategy;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses a k nearest neighbour query on a {@link GeometryFieldType} field;
+ * the score is 1 / (1 + distance), see
+ * {@link org.apache.lucene.spatial.pending.jts.NearestGeometryQuery}:
+ * <pre>
+ *   &lt;queryParser name="geoknn" class="org.apache.solr.spatial.pending.NearestGeometryQParserPlugin"/&gt;
+ *
+ *   q={!geoknn sfield=geo pt=45.15,-93.85 k=10}
+ * </pre>
+ * Like geofilt, pt is "lat,lon" in a geo context and "x,y" otherwise, and
+ * k must be a positive integer.  The k nearest are found among the
+ * documents the request's fq params accept, so a filter does not leave
+ * fewer than k.  The envelope indexes of the field are kept between
+ * searches.
+ */
+public class NearestGeometryQParserPlugin extends QParserPlugin {
+
+  public static final String NAME = "geoknn";
+  public static final int DEFAULT_K = 10;
+
+  // set while the fq params are parsed, so a geoknn among them does not apply them again
+  private static final String PARSING_FILTERS = NearestGeometryQParserPlugin.class.getName() + ".filters";
+
+  @Override
+  public void init(NamedList args) {
+  }
+
+  @Override
+  public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+    return new QParser(qstr, localParams, params, req) {
+      @Override
+      public Query parse() throws SyntaxError {
+        String fieldName = getParam("sfield");
+        if (fieldName == null) {
+          throw new SyntaxError("geoknn needs sfield");
+        }
+        String pt = getParam("pt");
+        if (pt == null) {
+          throw new SyntaxError("geoknn needs pt");
+        }
+        int k = parseK(getParam("k"));
+
+        SchemaField field = req.getSchema().getField(fieldName);
+        FieldType type = field.getType();
+        if (!(type instanceof GeometryFieldType)) {
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "geoknn needs a GeometryFieldType, " + fieldName + " is not one");
+        }
+        JtsGeoStrategy strategy = ((GeometryFieldType) type).getStrategy(fieldName);
+        return strategy.makeNearestQuery(parsePoint(pt, strategy.getSpatialContext()), k, getFilter(req));
+      }
+    };
+  }
+
+  static int parseK(String k) {
+    if (k == null) {
+      return DEFAULT_K;
+    }
+    int v;
+    try {
+      v = Integer.parseInt(k.trim());
+    }
+    catch (NumberFormatException ex) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "geoknn k must be a positive integer: " + k, ex);
+    }
+    if (v <= 0) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "geoknn k must be a positive integer: " + k);
+    }
+    return v;
+  }
+
+  /**
+   * @return the documents the request's fq params accept, or null for all
+   */
+  static Filter getFilter(SolrQueryRequest req) throws SyntaxError {
+    String[] fqs = req.getParams().getParams(CommonParams.FQ);
+    if (fqs == null || req.getContext().get(PARSING_FILTERS) != null) {
+      return null;
+    }
+    req.getContext().put(PARSING_FILTERS, Boolean.TRUE);
+    try {
+      List<String> strings = new ArrayList<String>(fqs.length);
+      List<Query> filters = new ArrayList<Query>(fqs.length);
+      for (String fq : fqs) {
+        if (fq != null && fq.trim().length() != 0) {
+          Query q = QParser.getParser(fq, null, req).getQuery();
+          if (q != null) {
+            strings.add(fq);
+            filters.add(q);
+          }
+        }
+      }
+      return filters.isEmpty() ? null : new FilterQueries(strings, filters);
+    }
+    finally {
+      req.getContext().remove(PARSING_FILTERS);
+    }
+  }
+
+  /**
+   * The documents some fq params accept.  Two are equal for the same fq
+   * strings, so the query result cache finds a geoknn query again.  The
+   * documents are looked up for each reader through the searcher of the
+   * current request, since a cached query is also run on the next searcher
+   * when its caches are warmed.
+   */
+  static class FilterQueries extends Filter {
+    final List<String> fqs;
+    final List<Query> queries;
+    // the documents found for the last reader
+    private IndexReader reader;
+    private DocSet docs;
+
+    FilterQueries(List<String> fqs, List<Query> queries) {
+      this.fqs = fqs;
+      this.queries = queries;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+      return docs(ReaderUtil.getTopLevelContext(context).reader()).getTopFilter().getDocIdSet(context, acceptDocs);
+    }
+
+    private synchronized DocSet docs(IndexReader top) throws IOException {
+      if (top != reader) {
+        SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+        SolrIndexSearcher searcher = (info == null ? null : info.getReq().getSearcher());
+        if (searcher == null || searcher.getIndexReader() != top) {
+          throw new IllegalStateException("geoknn fq params can only be applied to the searcher of the request");
+        }
+        docs = searcher.getDocSet(queries);
+        reader = top;
+      }
+      return docs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      return fqs.equals(((FilterQueries) o).fqs);
+    }
+
+    @Override
+    public int hashCode() {
+      return fqs.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return "fq=" + fqs;
+    }
+  }
+
+  static Point parsePoint(String pt, SpatialContext ctx) throws SyntaxError {
+    String[] parts = pt.split(",");
+    if (parts.length != 2) {
+      throw new SyntaxError("pt must be two numbers: " + pt);
+    }
+    try {
+      double a = Double.parseDouble(parts[0].trim());
+      double b = Double.parseDouble(parts[1].trim());
+      return ctx.isGeo() ? ctx.makePoint(b, a) : ctx.makePoint(a, b);
+    }
+    catch (NumberFormatException ex) {
+      throw new SyntaxError("pt must be two numbers: " + pt, ex);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.spatial.pending;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.index.sorter.SortingMergePolicy;
+import org.apache.lucene.spatial.pending.jts.JtsGeoStrategy;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A TieredMergePolicy whose merged segments are sorted along the
+ * space filling curve of a {@link GeometryFieldType} field, so nearby
+ * geometries get nearby docIDs.  The field needs a sortCurve:
+ * <pre>
+ *   &lt;fieldType name="geo" class="org.apache.solr.spatial.pending.GeometryFieldType"
+ *       storage="binary" sortCurve="hilbert" docValuesFormat="Geometry"/&gt;
+ *
+ *   &lt;mergePolicy class="org.apache.solr.spatial.pending.SpatialSortingMergePolicy"&gt;
+ *     &lt;str name="field"&gt;geo&lt;/str&gt;
+ *   &lt;/mergePolicy&gt;
+ * </pre>
+ * Solr makes the policy with no arguments and then calls the setters, so the
+ * sorting policy is made on first use.  Flushed segments are not sorted; an
+ * optimize sorts the whole index.
+ */
+public class SpatialSortingMergePolicy extends MergePolicy {
+
+  private TieredMergePolicy tiered = new TieredMergePolicy();
+  private String field;
+  private SortingMergePolicy sorting;
+
+  /**
+   * @param field the geometry field whose sort key orders merged segments
+   */
+  public void setField(String field) {
+    this.field = field;
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  public void setMaxMergeAtOnce(int v) {
+    tiered.setMaxMergeAtOnce(v);
+  }
+
+  public void setSegmentsPerTier(double v) {
+    tiered.setSegmentsPerTier(v);
+  }
+
+  public void setMaxMergedSegmentMB(double v) {
+    tiered.setMaxMergedSegmentMB(v);
+  }
+
+  public void setUseCompoundFile(boolean useCompoundFile) {
+    tiered.setNoCFSRatio(useCompoundFile ? 1.0 : 0.0);
+  }
+
+  protected synchronized SortingMergePolicy sorting() {
+    if (sorting == null) {
+      if (field == null) {
+        throw new IllegalStateException("SpatialSortingMergePolicy needs a field");
+      }
+      sorting = new SortingMergePolicy(tiered, JtsGeoStrategy.newSpatialSort(field));
+    }
+    return sorting;
+  }
+
+  @Override
+  public void setIndexWriter(IndexWriter writer) {
+    super.setIndexWriter(writer);
+    sorting().setIndexWriter(writer);
+  }
+
+  @Override
+  public MergeSpecification findMerges(MergeTrigger mergeTrigger, SegmentInfos segmentInfos) throws IOException {
+    return sorting().findMerges(mergeTrigger, segmentInfos);
+  }
+
+  @Override
+  public MergeSpecification findForcedMerges(SegmentInfos segmentInfos, int maxSegmentCount,
+                                             Map<SegmentCommitInfo, Boolean> segmentsToMerge) throws IOException {
+    return sorting().findForcedMerges(segmentInfos, maxSegmentCount, segmentsToMerge);
+  }
+
+  @Override
+  public MergeSpecification findForcedDeletesMerges(SegmentInfos segmentInfos) throws IOException {
+    return sorting().findForcedDeletesMerges(segmentInfos);
+  }
+
+  @Override
+  public boolean useCompoundFile(SegmentInfos infos, SegmentCommitInfo mergedInfo) throws IOException {
+    return sorting().useCompoundFile(infos, mergedInfo);
+  }
+
+  @Override
+  public void close() {
+    sorting().close();
+  }
+
+  @Override
+  public SpatialSortingMergePolicy clone() {
+    SpatialSortingMergePolicy clone = (SpatialSortingMergePolicy) super.clone();
+    clone.tiered = (TieredMergePolicy) tiered.clone();
+    clone.sorting = null;
+    return clone;
+  }
+
+  @Override
+  public String toString() {
+    return "SpatialSortingMergePolicy(field=" + field + ", " + tiered + ")";
+  }
+}
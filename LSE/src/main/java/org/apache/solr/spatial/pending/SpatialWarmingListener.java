@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.spatial.pending;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.spatial.pending.jts.JtsGeoStrategy;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Warms {@link GeometryFieldType} fields on new searchers, so the first
+ * spatial queries after a commit do not pay for loading them.  Only segments
+ * the previous searcher did not have are warmed; the others already are.
+ * <p/>
+ * Each field to warm is a list in the listener config.  With decode=true the
+ * geometries go into the field type's geometry cache (geometryCacheMB); a
+ * warning is logged at startup if the type has none:
+ * <pre>
+ *   &lt;listener event="newSearcher" class="org.apache.solr.spatial.pending.SpatialWarmingListener"&gt;
+ *     &lt;lst name="geo"&gt;&lt;bool name="decode"&gt;true&lt;/bool&gt;&lt;/lst&gt;
+ *   &lt;/listener&gt;
+ * </pre>
+ * Register it for firstSearcher too, to warm the whole index at startup.
+ */
+public class SpatialWarmingListener implements SolrEventListener {
+
+  static final Logger log = LoggerFactory.getLogger(SpatialWarmingListener.class);
+
+  final SolrCore core;
+
+  // field name -> decode
+  final Map<String, Boolean> fields = new LinkedHashMap<String, Boolean>();
+
+  public SpatialWarmingListener(SolrCore core) {
+    this.core = core;
+  }
+
+  @Override
+  public void init(NamedList args) {
+    for (int i = 0; i < args.size(); i++) {
+      Object v = args.getVal(i);
+      if (v instanceof NamedList) {
+        Object decode = ((NamedList) v).get("decode");
+        fields.put(args.getName(i), decode != null && Boolean.parseBoolean(decode.toString()));
+      }
+    }
+
+    // decoded geometries only have somewhere to go with a geometry cache
+    for (Map.Entry<String, Boolean> field : fields.entrySet()) {
+      SchemaField sf = core.getLatestSchema().getFieldOrNull(field.getKey());
+      if (field.getValue() && sf != null && sf.getType() instanceof GeometryFieldType
+          && ((GeometryFieldType) sf.getType()).getGeometryCache() == null
+          && !((GeometryFieldType) sf.getType()).getStrategy(field.getKey()).isOffHeap()) {
+        log.warn("decode=true does nothing for {}: its field type has no geometryCacheMB", field.getKey());
+      }
+    }
+  }
+
+  @Override
+  public void postCommit() {
+  }
+
+  @Override
+  public void postSoftCommit() {
+  }
+
+  @Override
+  public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    Set<Object> warm = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    if (currentSearcher != null) {
+      for (AtomicReaderContext leaf : currentSearcher.getTopReaderContext().leaves()) {
+        warm.add(leaf.reader().getCoreCacheKey());
+      }
+    }
+
+    for (Map.Entry<String, Boolean> field : fields.entrySet()) {
+      JtsGeoStrategy strategy = getStrategy(newSearcher, field.getKey());
+      long start = System.currentTimeMillis();
+      int count = 0;
+      for (AtomicReaderContext leaf : newSearcher.getTopReaderContext().leaves()) {
+        if (warm.contains(leaf.reader().getCoreCacheKey())) {
+          continue;
+        }
+        try {
+          strategy.warm(leaf.reader(), field.getValue());
+          count++;
+        }
+        catch (IOException ex) {
+          log.error("Error warming " + field.getKey(), ex);
+        }
+      }
+      log.info("Warmed {} new segments of {} in {}ms",
+          count, field.getKey(), System.currentTimeMillis() - start);
+    }
+  }
+
+  private static JtsGeoStrategy getStrategy(SolrIndexSearcher searcher, String fieldName) {
+    SchemaField field = searcher.getSchema().getField(fieldName);
+    FieldType type = field.getType();
+    if (!(type instanceof GeometryFieldType)) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "Can not warm " + fieldName + ", it is not a GeometryFieldType");
+    }
+    return ((GeometryFieldType) type).getStrategy(fieldName);
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.distance.DistanceCalculator;
+import com.spatial4j.core.distance.DistanceUtils;
+import com.spatial4j.core.shape.Circle;
+import com.spatial4j.core.shape.Point;
+import com.vividsolutions.jts.algorithm.locate.SimplePointInAreaLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.io.WKTReader;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class GeodesicCircleTesterTest extends LuceneTestCase {
+
+  static final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+
+  /**
+   * A long edge along a parallel stays on it, as its envelope says, rather
+   * than bulging north like a great circle arc
+   */
+  @Test
+  public void testLongEdgeAlongParallel() throws Exception {
+    Geometry geo = new WKTReader().read("POLYGON((-123 40, -95 40, -95 49, -123 49, -123 40))");
+    double radius = DistanceUtils.dist2Degrees(60, DistanceUtils.EARTH_MEAN_RADIUS_KM);
+    GeodesicCircleTester tester = new GeodesicCircleTester(ctx.makeCircle(-109, 50.3, radius), false);
+    assertEquals(Boolean.FALSE, tester.matchesEnvelope(geo.getEnvelopeInternal()));
+    assertFalse(tester.matches(geo));
+
+    // and one that does reach the edge
+    tester = new GeodesicCircleTester(ctx.makeCircle(-109, 49.4, radius), false);
+    assertNull(tester.matchesEnvelope(geo.getEnvelopeInternal()));
+    assertTrue(tester.matches(geo));
+  }
+
+  /**
+   * Against the closest of many points along each lon/lat edge, and a point
+   * in polygon test of the center; the envelope checks must agree too
+   */
+  @Test
+  public void testAgainstSampling() {
+    DistanceCalculator calc = ctx.getDistCalc();
+    int iters = atLeast(300);
+    for (int it = 0; it < iters; it++) {
+      Geometry geo = ctx.getGeometryFrom(SpatialTestUtil.randomShape(random(), 30));
+      double x = -180 + 360 * random().nextDouble();
+      double y = -85 + 170 * random().nextDouble();
+      double radius = 30 * random().nextDouble() * random().nextDouble();
+      Point center = ctx.makePoint(x, y);
+
+      double sampled = Double.MAX_VALUE;
+      Coordinate[] coords = geo.getCoordinates();
+      for (int i = 0; i < coords.length; i++) {
+        sampled = Math.min(sampled, calc.distance(center, coords[i].x, coords[i].y));
+        if (i > 0 && geo.getDimension() > 0) {
+          Coordinate a = coords[i - 1], b = coords[i];
+          int n = 4000;
+          for (int j = 1; j < n; j++) {
+            double t = (double) j / n;
+            sampled = Math.min(sampled, calc.distance(center, a.x + t * (b.x - a.x), a.y + t * (b.y - a.y)));
+          }
+        }
+      }
+      boolean inside = geo.getDimension() == 2
+          && SimplePointInAreaLocator.locate(new Coordinate(x, y), geo) != Location.EXTERIOR;
+      if (!inside && Math.abs(sampled - radius) < 0.02) {
+        continue; // too close to call by sampling
+      }
+      boolean expected = inside || sampled <= radius;
+
+      for (boolean disjoint : new boolean[] { false, true }) {
+        GeodesicCircleTester tester = new GeodesicCircleTester(ctx.makeCircle(center, radius), disjoint);
+        String msg = geo + " center " + x + "," + y + " radius " + radius + " sampled " + sampled;
+        assertEquals(msg, expected != disjoint, tester.matches(geo));
+        Boolean byEnvelope = tester.matchesEnvelope(geo.getEnvelopeInternal());
+        if (byEnvelope != null) {
+          assertEquals(msg, expected != disjoint, byEnvelope);
+        }
+        if (!disjoint && expected) {
+          assertTrue(msg, tester.getCandidateEnvelope().intersects(geo.getEnvelopeInternal()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Geometries kept past the dateline must be found by circles on the other
+   * side of it through the envelope index, block skipping and tiles, as the
+   * tester finds them in a scan
+   */
+  @Test
+  public void testIndexedAcrossDateline() throws Exception {
+    JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+    strategy.setStorage(JtsGeoStrategy.Storage.BINARY);
+    strategy.setTilePoints(8);
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+    // only the geometries themselves, with small blocks so some can be skipped
+    iwc.setCodec(new Lucene46Codec() {
+      final DocValuesFormat geometry = new GeometryDocValuesFormat(4, 1 << 12);
+
+      @Override
+      public DocValuesFormat getDocValuesFormatForField(String field) {
+        return "geo".equals(field) ? geometry : super.getDocValuesFormatForField(field);
+      }
+    });
+    IndexWriter writer = new IndexWriter(dir, iwc);
+    List<Geometry> geos = new ArrayList<Geometry>();
+    int numDocs = atLeast(300);
+    for (int i = 0; i < numDocs; i++) {
+      // around the dateline, some of them past -180 or 180
+      double x = (random().nextBoolean() ? 180 : -180) - 15 + 30 * random().nextDouble();
+      double y = -60 + 120 * random().nextDouble();
+      Geometry geo = QueryGridTest.ring(x, y, 0.5 + 3 * random().nextDouble(), 3 + random().nextInt(30));
+      geos.add(geo);
+      Document doc = new Document();
+      for (Field f : strategy.createIndexableFields(geo)) {
+        doc.add(f);
+      }
+      writer.addDocument(doc);
+    }
+    writer.close();
+
+    IndexReader reader = DirectoryReader.open(dir);
+    IndexSearcher searcher = newSearcher(reader);
+    JtsGeoStrategy indexed = new JtsGeoStrategy(ctx, "geo");
+    indexed.setEnvelopeIndex(true);
+    int iters = atLeast(30);
+    for (int it = 0; it < iters; it++) {
+      double x = 170 + 20 * random().nextDouble();
+      double y = -60 + 120 * random().nextDouble();
+      Circle circle = ctx.makeCircle(x > 180 ? x - 360 : x, y, 1 + 10 * random().nextDouble());
+      SpatialOperation op = random().nextBoolean() ? SpatialOperation.Intersects : SpatialOperation.IsDisjointTo;
+      GeodesicCircleTester tester = new GeodesicCircleTester(circle, op == SpatialOperation.IsDisjointTo);
+
+      int numMatches = 0;
+      FixedBitSet expected = new FixedBitSet(reader.maxDoc());
+      for (int docID = 0; docID < geos.size(); docID++) {
+        if (tester.matches(geos.get(docID))) {
+          expected.set(docID);
+          numMatches++;
+        }
+      }
+      SpatialArgs args = new SpatialArgs(op, circle);
+      for (JtsGeoStrategy s : new JtsGeoStrategy[] { strategy, indexed }) {
+        assertEquals(args + " matches " + numMatches, expected,
+            SpatialTestUtil.collect(searcher, new ConstantScoreQuery(s.makeFilter(args))));
+      }
+    }
+    reader.close();
+    dir.close();
+  }
+}
@@ -0,0 +1,513 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.shape.Shape;
+import com.spatial4j.core.shape.ShapeCollection;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.TestUtil;
+import org.apache.lucene.util.Version;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures the strategy's options on a sample data file, such as
+ * spatial-demo/data/countries-poly.txt.  It is not a test; run it with the
+ * test classpath:
+ * <pre>
+ *   java org.apache.lucene.spatial.pending.jts.GeometryBenchmark countries-poly.txt [copies] [section...]
+ * </pre>
+ * Each shape is indexed copies times (default 20).  The sections are
+ * prepared, storage, encoding, parallel, lod, sort and simplify; all of them
+ * run by default.  Times are the best of {@link #ROUNDS} rounds, after one
+ * round to warm up.
+ */
+public class GeometryBenchmark {
+
+  static final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+  static final int ROUNDS = 5;
+  static final int NUM_QUERIES = 50;
+
+  final List<Shape> shapes;
+  final int copies;
+  final List<Shape> boxes = new ArrayList<Shape>();
+  final List<Shape> countries = new ArrayList<Shape>();
+
+  GeometryBenchmark(List<Shape> shapes, int copies) {
+    this.shapes = shapes;
+    this.copies = copies;
+    Random r = new Random(42);
+    for (int i = 0; i < NUM_QUERIES; i++) {
+      double x = -170 + r.nextDouble() * 320;
+      double y = -60 + r.nextDouble() * 110;
+      boxes.add(ctx.makeRectangle(x, x + 20, y, y + 20));
+    }
+    // the most detailed shapes, which are the expensive queries
+    List<Shape> byPoints = new ArrayList<Shape>(shapes);
+    Collections.sort(byPoints, new Comparator<Shape>() {
+      @Override
+      public int compare(Shape a, Shape b) {
+        return points(b) - points(a);
+      }
+    });
+    countries.addAll(byPoints.subList(0, Math.min(10, byPoints.size())));
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println("GeometryBenchmark <data file> [copies] [section...]");
+      System.exit(1);
+    }
+    List<Shape> shapes = read(new File(args[0]));
+    int copies = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    List<String> sections = new ArrayList<String>();
+    for (int i = 2; i < args.length; i++) {
+      sections.add(args[i]);
+    }
+    GeometryBenchmark bench = new GeometryBenchmark(shapes, copies);
+    System.out.println(shapes.size() + " shapes x " + copies + " copies");
+    if (sections.isEmpty() || sections.contains("prepared")) bench.prepared();
+    if (sections.isEmpty() || sections.contains("storage")) bench.storage();
+    if (sections.isEmpty() || sections.contains("encoding")) bench.encoding();
+    if (sections.isEmpty() || sections.contains("parallel")) bench.parallel();
+    if (sections.isEmpty() || sections.contains("lod")) bench.lod();
+    if (sections.isEmpty() || sections.contains("sort")) bench.sort();
+    if (sections.isEmpty() || sections.contains("simplify")) bench.simplify();
+  }
+
+  /**
+   * Per document cost of the predicate alone, plain against prepared
+   */
+  void prepared() {
+    List<Geometry> docs = new ArrayList<Geometry>();
+    for (Shape shape : shapes) {
+      docs.add(ctx.getGeometryFrom(shape));
+    }
+    System.out.println("== prepared: Intersects of the " + countries.size() + " most detailed shapes with every shape");
+    for (int plain = 1; plain >= 0; plain--) {
+      long best = Long.MAX_VALUE;
+      for (int round = 0; round <= ROUNDS; round++) {
+        long start = System.nanoTime();
+        for (Shape q : countries) {
+          Geometry query = ctx.getGeometryFrom(q);
+          GeometryTest tester = GeometryTestFactory.get(SpatialOperation.Intersects, query);
+          for (Geometry doc : docs) {
+            if (plain == 1) {
+              query.intersects(doc);
+            }
+            else {
+              tester.matches(doc);
+            }
+          }
+        }
+        if (round > 0) {
+          best = Math.min(best, System.nanoTime() - start);
+        }
+      }
+      System.out.println((plain == 1 ? "plain:    " : "prepared: ")
+          + best / ((long) countries.size() * docs.size()) + " ns/doc");
+    }
+  }
+
+  /**
+   * Merge time and reader heap of sorted against binary values
+   */
+  void storage() throws Exception {
+    System.out.println("== storage: forceMerge and reader heap (sorted values are simplified to 32000 bytes)");
+    for (JtsGeoStrategy.Storage storage : JtsGeoStrategy.Storage.values()) {
+      JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+      strategy.setStorage(storage);
+      Directory dir = new RAMDirectory();
+      IndexWriter writer = new IndexWriter(dir, newConfig());
+      addAll(writer, strategy, 100);
+      long start = System.nanoTime();
+      writer.forceMerge(1);
+      long merge = System.nanoTime() - start;
+      writer.close();
+
+      start = System.nanoTime();
+      DirectoryReader reader = DirectoryReader.open(dir);
+      for (AtomicReaderContext leaf : reader.leaves()) {
+        GeometryDocValues.get(leaf.reader(), "geo", ctx.getGeometryFactory());
+      }
+      long open = System.nanoTime() - start;
+      System.out.println(storage + ": merge " + merge / 1000000 + " ms, open " + open / 1000000
+          + " ms, reader heap " + readerBytes(reader) + " bytes, index " + dirBytes(dir) + " bytes");
+      reader.close();
+      dir.close();
+    }
+  }
+
+  /**
+   * Size and decoding time of WKB against the compact encoding
+   */
+  void encoding() throws Exception {
+    System.out.println("== encoding: index size and time to decode every geometry");
+    for (JtsGeoStrategy.Encoding encoding : JtsGeoStrategy.Encoding.values()) {
+      JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+      strategy.setStorage(JtsGeoStrategy.Storage.BINARY);
+      strategy.setEncoding(encoding);
+      Directory dir = index(strategy, newConfig());
+      DirectoryReader reader = DirectoryReader.open(dir);
+      long best = Long.MAX_VALUE;
+      for (int round = 0; round <= ROUNDS; round++) {
+        long start = System.nanoTime();
+        for (AtomicReaderContext leaf : reader.leaves()) {
+          GeometryDocValues values = GeometryDocValues.get(leaf.reader(), "geo", ctx.getGeometryFactory());
+          for (int docID = 0; docID < leaf.reader().maxDoc(); docID++) {
+            if (values.exists(docID)) {
+              values.getGeometry(docID);
+            }
+          }
+        }
+        if (round > 0) {
+          best = Math.min(best, System.nanoTime() - start);
+        }
+      }
+      System.out.println(encoding + ": index " + dirBytes(dir) + " bytes, decode " + best / reader.maxDoc() + " ns/doc");
+      reader.close();
+      dir.close();
+    }
+  }
+
+  /**
+   * Query latency on one segment with 1 to N threads, at least up to 4
+   */
+  void parallel() throws Exception {
+    System.out.println("== parallel: box queries on one segment");
+    JtsGeoStrategy indexer = new JtsGeoStrategy(ctx, "geo");
+    indexer.setStorage(JtsGeoStrategy.Storage.BINARY);
+    Directory dir = index(indexer, newConfig());
+    DirectoryReader reader = DirectoryReader.open(dir);
+    // past the core count it shows what splitting costs
+    int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+    // two passes warm up both paths, or whichever runs first looks slowest
+    for (int pass = 0; pass < 3; pass++) {
+      for (int n = 1; n <= maxThreads; n *= 2) {
+        JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+        ForkJoinPool pool = (n > 1 ? new ForkJoinPool(n) : null);
+        if (pool != null) {
+          strategy.setPool(pool);
+          strategy.setParallelMinDocs(GeometryOperationFilter.MIN_PARALLEL_CHUNK);
+        }
+        long millis = queryMillis(reader, strategy, boxes);
+        if (pass == 2) {
+          System.out.println(n + " threads: " + millis + " ms per " + boxes.size() + " queries");
+        }
+        if (pool != null) {
+          pool.shutdown();
+        }
+      }
+    }
+    reader.close();
+    dir.close();
+  }
+
+  /**
+   * Query latency with and without a coarse level of detail
+   */
+  void lod() throws Exception {
+    System.out.println("== lod: the most detailed shapes as queries");
+    for (int lodPoints : new int[] { 0, 64 }) {
+      JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+      strategy.setStorage(JtsGeoStrategy.Storage.BINARY);
+      strategy.setLodPoints(lodPoints);
+      Directory dir = index(strategy, newConfig());
+      DirectoryReader reader = DirectoryReader.open(dir);
+      System.out.println("lodPoints=" + lodPoints + ": " + queryMillis(reader, strategy, countries)
+          + " ms per " + countries.size() + " queries, index " + dirBytes(dir) + " bytes");
+      reader.close();
+      dir.close();
+    }
+  }
+
+  /**
+   * Query latency and size of one segment sorted along the Hilbert curve
+   * against one in file order, both with the geometry DocValuesFormat
+   */
+  void sort() throws Exception {
+    System.out.println("== sort: box queries on one segment with block envelopes");
+    for (SpaceFillingCurve curve : new SpaceFillingCurve[] { null, SpaceFillingCurve.HILBERT }) {
+      JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+      strategy.setStorage(JtsGeoStrategy.Storage.BINARY);
+      strategy.setSortCurve(curve);
+      IndexWriterConfig iwc = newConfig();
+      iwc.setCodec(TestUtil.alwaysDocValuesFormat(new GeometryDocValuesFormat()));
+      if (curve != null) {
+        iwc.setMergePolicy(strategy.newSortingMergePolicy(iwc.getMergePolicy()));
+      }
+      Directory dir = index(strategy, iwc);
+      DirectoryReader reader = DirectoryReader.open(dir);
+      long raw = 0;
+      for (Shape shape : shapes) {
+        raw += new WKBWriter().write(ctx.getGeometryFrom(shape)).length;
+      }
+      long data = 0;
+      for (String file : dir.listAll()) {
+        if (file.endsWith("." + GeometryDocValuesFormat.DATA_EXTENSION)) {
+          data += dir.fileLength(file);
+        }
+      }
+      System.out.println((curve == null ? "file order: " : curve + ": ") + queryMillis(reader, strategy, boxes)
+          + " ms per " + boxes.size() + " queries, data " + data + " bytes, ratio "
+          + String.format("%.2f", (double) raw * copies / data));
+      reader.close();
+      dir.close();
+    }
+  }
+
+  static final SizeTargetedSimplifier.Sizer WKB_SIZE = new SizeTargetedSimplifier.Sizer() {
+    @Override
+    public int sizeOf(Geometry g) {
+      return new WKBWriter().write(g).length;
+    }
+  };
+
+  static final SizeTargetedSimplifier.Sizer WKT_SIZE = new SizeTargetedSimplifier.Sizer() {
+    @Override
+    public int sizeOf(Geometry g) {
+      return g.toText().length();
+    }
+  };
+
+  /**
+   * Simplification throughput against the 0.7 loop the strategy and
+   * SampleDataWriter used before.  Few sample shapes are over the limits
+   * those use, so every shape of 100 points or more is simplified to a
+   * quarter of its size, in WKB as the strategy measures it and in WKT as
+   * the demo writer does.  Shapes with many small islands may not get that
+   * small, as each ring keeps at least 4 points.
+   */
+  void simplify() {
+    System.out.println("== simplify: shapes of 100 points or more per second, each to a quarter of its size");
+    List<Geometry> geos = new ArrayList<Geometry>();
+    for (Shape shape : shapes) {
+      Geometry geo = ctx.getGeometryFrom(shape);
+      // smaller ones may not get to a quarter at all
+      if (geo.getNumPoints() >= 100) {
+        geos.add(geo);
+      }
+    }
+    for (SizeTargetedSimplifier.Sizer sizer : new SizeTargetedSimplifier.Sizer[] { WKB_SIZE, WKT_SIZE }) {
+      int[] sizes = new int[geos.size()];
+      for (int i = 0; i < sizes.length; i++) {
+        sizes[i] = sizer.sizeOf(geos.get(i));
+      }
+      long best = Long.MAX_VALUE;
+      long oldBest = Long.MAX_VALUE;
+      // the mean size of the results, as a share of the target
+      double kept = 0;
+      double oldKept = 0;
+      for (int round = 0; round <= ROUNDS; round++) {
+        long start = System.nanoTime();
+        for (int i = 0; i < sizes.length; i++) {
+          Geometry simple = new SizeTargetedSimplifier(geos.get(i)).simplifyToSize(sizes[i] / 4, sizes[i], sizer);
+          if (round == 0) {
+            kept += (double) sizer.sizeOf(simple) / (sizes[i] / 4) / sizes.length;
+          }
+        }
+        long t = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < sizes.length; i++) {
+          Geometry simple = oldLoop(geos.get(i), sizes[i] / 4, sizer);
+          if (round == 0) {
+            oldKept += (double) sizer.sizeOf(simple) / (sizes[i] / 4) / sizes.length;
+          }
+        }
+        long old = System.nanoTime() - start;
+        if (round > 0) {
+          best = Math.min(best, t);
+          oldBest = Math.min(oldBest, old);
+        }
+      }
+      String name = (sizer == WKB_SIZE ? "wkb" : "wkt");
+      System.out.println(name + " size targeted: " + geos.size() * 1000000000L / best + " shapes/s, "
+          + String.format("%.0f", kept * 100) + "% of the target in size");
+      System.out.println(name + " 0.7 loop:      " + geos.size() * 1000000000L / oldBest + " shapes/s, "
+          + String.format("%.0f", oldKept * 100) + "% of the target in size");
+    }
+  }
+
+  /**
+   * What JtsGeoStrategy and SampleDataWriter did before {@link SizeTargetedSimplifier}
+   */
+  static Geometry oldLoop(Geometry geo, int maxBytes, SizeTargetedSimplifier.Sizer sizer) {
+    Envelope env = geo.getEnvelopeInternal();
+    double mins = Math.min(env.getWidth(), env.getHeight());
+    double div = 1000;
+    Geometry simple = geo;
+    int last = sizer.sizeOf(simple);
+    while (last >= maxBytes) {
+      simple = TopologyPreservingSimplifier.simplify(geo, mins / div);
+      int size = sizer.sizeOf(simple);
+      if (size == last) {
+        break;
+      }
+      last = size;
+      div *= .70;
+    }
+    return simple;
+  }
+
+  long queryMillis(IndexReader reader, JtsGeoStrategy strategy, List<Shape> queries) throws Exception {
+    IndexSearcher searcher = new IndexSearcher(reader);
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round <= ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (Shape q : queries) {
+        searcher.search(new ConstantScoreQuery(strategy.makeFilter(
+            new SpatialArgs(SpatialOperation.Intersects, q))), new TotalHitCountCollector());
+      }
+      if (round > 0) {
+        best = Math.min(best, System.nanoTime() - start);
+      }
+    }
+    return best / 1000000;
+  }
+
+  /**
+   * @return every shape copies times, in one segment
+   */
+  Directory index(JtsGeoStrategy strategy, IndexWriterConfig iwc) throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, iwc);
+    addAll(writer, strategy, 0);
+    writer.forceMerge(1);
+    writer.close();
+    return dir;
+  }
+
+  void addAll(IndexWriter writer, JtsGeoStrategy strategy, int commitEvery) throws Exception {
+    List<Field[]> fields = new ArrayList<Field[]>();
+    for (Shape shape : shapes) {
+      try {
+        fields.add(strategy.createIndexableFields(shape));
+      }
+      catch (RuntimeException ex) {
+        System.err.println("not indexed: " + ex);
+      }
+    }
+    int added = 0;
+    for (int c = 0; c < copies; c++) {
+      for (Field[] f : fields) {
+        Document doc = new Document();
+        for (Field field : f) {
+          doc.add(field);
+        }
+        writer.addDocument(doc);
+        if (commitEvery > 0 && ++added % commitEvery == 0) {
+          writer.commit();
+        }
+      }
+    }
+  }
+
+  static IndexWriterConfig newConfig() {
+    IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_48, new KeywordAnalyzer());
+    LogByteSizeMergePolicy mp = new LogByteSizeMergePolicy();
+    mp.setNoCFSRatio(0);
+    iwc.setMergePolicy(mp);
+    return iwc;
+  }
+
+  static long readerBytes(IndexReader reader) {
+    long bytes = 0;
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      if (leaf.reader() instanceof SegmentReader) {
+        bytes += ((SegmentReader) leaf.reader()).ramBytesUsed();
+      }
+    }
+    return bytes;
+  }
+
+  static long dirBytes(Directory dir) throws Exception {
+    long bytes = 0;
+    for (String file : dir.listAll()) {
+      bytes += dir.fileLength(file);
+    }
+    return bytes;
+  }
+
+  static int points(Shape shape) {
+    return ctx.getGeometryFrom(shape).getNumPoints();
+  }
+
+  /**
+   * Reads the id, name, WKT lines of the demo data files, leaving out
+   * shapes spatial4j rejects
+   */
+  static List<Shape> read(File file) throws Exception {
+    List<Shape> shapes = new ArrayList<Shape>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.startsWith("#") || line.trim().isEmpty()) {
+          continue;
+        }
+        String[] cols = line.split("\t");
+        try {
+          Shape shape = ctx.readShapeFromWkt(cols[2]);
+          if (shape instanceof ShapeCollection) {
+            // spatial4j reads a MULTIPOLYGON as a collection, which has no Geometry
+            shape = ctx.makeShape(new WKTReader(ctx.getGeometryFactory()).read(cols[2]));
+          }
+          shapes.add(shape);
+        }
+        catch (Exception ex) {
+          System.err.println("skipping " + cols[0] + ": " + ex);
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+    return shapes;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.ParallelAtomicReader;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+public class GeometryCacheTest extends LuceneTestCase {
+
+  @Test
+  public void testPurgedWhenParallelReaderCloses() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random())));
+    for (int i = 0; i < 10; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", "" + i, Field.Store.NO));
+      writer.addDocument(doc);
+    }
+    writer.close();
+
+    // keeps the default core cache key, the reader itself
+    AtomicReader reader = new ParallelAtomicReader(SlowCompositeReaderWrapper.wrap(DirectoryReader.open(dir)));
+    GeometryCache cache = new GeometryCache(1 << 20);
+    assertNotNull(cache.getSegment(reader, "geo"));
+    assertTrue(cache.ramBytesUsed() > 0);
+    reader.close();
+    assertEquals(0, cache.ramBytesUsed());
+    dir.close();
+  }
+
+  @Test
+  public void testSegmentArrayWithinBudget() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random())));
+    for (int i = 0; i < 1000; i++) {
+      writer.addDocument(new Document());
+    }
+    writer.close();
+
+    AtomicReader reader = SlowCompositeReaderWrapper.wrap(DirectoryReader.open(dir));
+    GeometryCache small = new GeometryCache(100);
+    assertNull(small.getSegment(reader, "geo"));
+    assertEquals(0, small.ramBytesUsed());
+
+    GeometryCache cache = new GeometryCache(GeometryCache.arrayBytes(reader.maxDoc()) * 3 / 2);
+    assertNotNull(cache.getSegment(reader, "a"));
+    assertNotNull(cache.getSegment(reader, "b"));
+    assertTrue(cache.ramBytesUsed() <= cache.getMaxBytes());
+    assertEquals(1, cache.getEvictions());
+    reader.close();
+    dir.close();
+  }
+}
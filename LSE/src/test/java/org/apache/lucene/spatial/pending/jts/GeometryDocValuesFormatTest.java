@@ -16,35 +16,19 @@
  */
 package org.apache.lucene.spatial.pending.jts;
 
-import java.io.IOException;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.BaseDocValuesFormatTestCase;
+import org.apache.lucene.util.TestUtil;
 
-import org.apache.lucene.util.BytesRef;
-
-import com.spatial4j.core.exception.InvalidShapeException;
-import com.vividsolutions.jts.io.InStream;
-
-public class BytesRefStream implements InStream {
-  protected BytesRef ref;
-  protected int off;
-
-  public BytesRefStream(BytesRef ref) {
-    setBytesRef(ref);
-  }
-
-  public void setBytesRef(BytesRef ref) {
-    this.ref= ref;
-    this.off = ref.offset;
-  }
-  public BytesRef getBytesRef() {
-    return this.ref;
-  }
+/**
+ * Random block and chunk sizes, so values land in chunks, raw and across
+ * block ends.
+ */
+public class GeometryDocValuesFormatTest extends BaseDocValuesFormatTestCase {
 
   @Override
-  public void read(byte[] buf) throws IOException {
-    if ( buf.length > ref.length+off ) {
-      throw new InvalidShapeException("Asking for too many bytes");
-    }
-    System.arraycopy(ref.bytes, off, buf, 0, buf.length);
-    off += buf.length;
+  protected Codec getCodec() {
+    return TestUtil.alwaysDocValuesFormat(new GeometryDocValuesFormat(
+        TestUtil.nextInt(random(), 1, 8), TestUtil.nextInt(random(), 1, 1 << 15)));
   }
 }
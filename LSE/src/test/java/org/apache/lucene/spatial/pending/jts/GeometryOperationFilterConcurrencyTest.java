@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads share one filter per query shape, each searching through an
+ * IndexSearcher with an executor, and must get what a single thread gets.
+ */
+@LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class GeometryOperationFilterConcurrencyTest extends LuceneTestCase {
+
+  static final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+
+  @Test
+  public void testSharedFilter() throws Exception {
+    checkSharedFilter(new JtsGeoStrategy(ctx, "geo"));
+  }
+
+  @Test
+  public void testSharedFilterWithCaches() throws Exception {
+    JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+    strategy.setGeometryCache(new GeometryCache(1 << 20));
+    strategy.setEnvelopeIndex(true);
+    strategy.setLodPoints(2);
+    checkSharedFilter(strategy);
+  }
+
+  @Test
+  public void testSharedFilterParallel() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+      strategy.setPool(pool);
+      strategy.setParallelMinDocs(GeometryOperationFilter.MIN_PARALLEL_CHUNK);
+      checkSharedFilter(strategy);
+    }
+    finally {
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  private void checkSharedFilter(JtsGeoStrategy strategy) throws Exception {
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random())));
+    int numDocs = atLeast(3000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      for (Field f : strategy.createIndexableFields(SpatialTestUtil.randomShape(random(), 3))) {
+        doc.add(f);
+      }
+      writer.addDocument(doc);
+      if (random().nextInt(500) == 0) {
+        writer.commit();
+      }
+    }
+    writer.close();
+
+    IndexReader reader = DirectoryReader.open(dir);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    ExecutorService clients = Executors.newFixedThreadPool(8);
+    try {
+      final IndexSearcher serial = new IndexSearcher(reader);
+      final IndexSearcher concurrent = new IndexSearcher(reader, executor);
+
+      int numQueries = atLeast(10);
+      final List<ConstantScoreQuery> queries = new ArrayList<ConstantScoreQuery>();
+      final List<FixedBitSet> expected = new ArrayList<FixedBitSet>();
+      for (int i = 0; i < numQueries; i++) {
+        SpatialOperation op = SpatialTestUtil.OPS[random().nextInt(SpatialTestUtil.OPS.length)];
+        ConstantScoreQuery query = new ConstantScoreQuery(
+            strategy.makeFilter(new SpatialArgs(op, SpatialTestUtil.randomShape(random(), 40))));
+        queries.add(query);
+        expected.add(SpatialTestUtil.collect(serial, query));
+        assertEquals("query " + query, expected.get(i), randomAccess(reader, query.getFilter()));
+      }
+
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (int t = 0; t < 8; t++) {
+        final long seed = random().nextLong();
+        results.add(clients.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            Random r = new Random(seed);
+            for (int i = 0; i < 50; i++) {
+              int q = r.nextInt(queries.size());
+              FixedBitSet actual = SpatialTestUtil.collect(concurrent, queries.get(q));
+              assertEquals("query " + queries.get(q), expected.get(q), actual);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    }
+    finally {
+      clients.shutdown();
+      executor.shutdown();
+      clients.awaitTermination(1, TimeUnit.MINUTES);
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+      reader.close();
+      dir.close();
+    }
+  }
+
+  /**
+   * @return the matches found through {@link DocIdSet#bits()}, which does not
+   *         iterate the segment
+   */
+  static FixedBitSet randomAccess(IndexReader reader, Filter filter) throws Exception {
+    FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+    for (AtomicReaderContext context : reader.leaves()) {
+      DocIdSet set = filter.getDocIdSet(context, context.reader().getLiveDocs());
+      Bits matches = set == null ? null : set.bits();
+      if (matches == null) {
+        continue;
+      }
+      for (int doc = 0; doc < context.reader().maxDoc(); doc++) {
+        if (matches.get(doc)) {
+          bits.set(context.docBase + doc);
+        }
+      }
+    }
+    return bits;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.shape.Shape;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKBWriter;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.List;
+
+@LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class GeometryTilerTest extends LuceneTestCase {
+
+  static final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+
+  static final SizeTargetedSimplifier.Sizer WKB_SIZE = new SizeTargetedSimplifier.Sizer() {
+    @Override
+    public int sizeOf(Geometry g) {
+      return new WKBWriter().write(g).length;
+    }
+  };
+
+  /**
+   * A fragment with few enough vertices can still be too many bytes
+   */
+  @Test
+  public void testFragmentBytes() {
+    Geometry geo = circle(0, 0, 60, 20000);
+    GeometryTiler tiler = new GeometryTiler(new Envelope(-180, 180, -90, 90), 5000, 16384, WKB_SIZE);
+    List<Geometry> fragments = tiler.tile(geo);
+    assertTrue(fragments.size() > 1);
+    double area = 0;
+    for (Geometry fragment : fragments) {
+      assertTrue(fragment.getNumPoints() <= 5000);
+      assertTrue(WKB_SIZE.sizeOf(fragment) <= 16384);
+      area += fragment.getArea();
+    }
+    assertEquals(geo.getArea(), area, geo.getArea() * 1e-9);
+  }
+
+  /**
+   * The same shapes indexed whole and tiled must match the same queries
+   */
+  @Test
+  public void testTiledMatchesWhole() throws Exception {
+    JtsGeoStrategy whole = new JtsGeoStrategy(ctx, "whole");
+    JtsGeoStrategy tiled = new JtsGeoStrategy(ctx, "tiled");
+    tiled.setTilePoints(8);
+    tiled.setTileBytes(random().nextBoolean() ? 200 : 1 << 14);
+
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random())));
+    int numDocs = atLeast(300);
+    for (int i = 0; i < numDocs; i++) {
+      Shape shape = SpatialTestUtil.randomShape(random(), 20);
+      Document doc = new Document();
+      for (Field f : whole.createIndexableFields(shape)) {
+        doc.add(f);
+      }
+      for (Field f : tiled.createIndexableFields(shape)) {
+        doc.add(f);
+      }
+      writer.addDocument(doc);
+    }
+    writer.close();
+
+    IndexReader reader = DirectoryReader.open(dir);
+    IndexSearcher searcher = newSearcher(reader);
+    int iters = atLeast(50);
+    for (int i = 0; i < iters; i++) {
+      SpatialOperation op = SpatialTestUtil.OPS[random().nextInt(SpatialTestUtil.OPS.length)];
+      SpatialArgs args = new SpatialArgs(op,
+          SpatialTestUtil.randomShape(random(), 1 + random().nextInt(40)));
+      assertEquals(args.toString(),
+          SpatialTestUtil.collect(searcher, new ConstantScoreQuery(whole.makeFilter(args))),
+          SpatialTestUtil.collect(searcher, new ConstantScoreQuery(tiled.makeFilter(args))));
+    }
+    reader.close();
+    dir.close();
+  }
+
+  static Geometry circle(double x, double y, double radius, int points) {
+    GeometryFactory factory = ctx.getGeometryFactory();
+    Coordinate[] ring = new Coordinate[points + 1];
+    for (int i = 0; i < points; i++) {
+      double angle = 2 * Math.PI * i / points;
+      ring[i] = new Coordinate(x + radius * Math.cos(angle), y + radius * Math.sin(angle) / 2);
+    }
+    ring[points] = ring[0];
+    return factory.createPolygon(factory.createLinearRing(ring), null);
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The k nearest documents, with and without kept envelope indexes and a
+ * filter, against measuring every document.
+ */
+@LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class NearestGeometriesTest extends LuceneTestCase {
+
+  static final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+
+  @Test
+  public void testAgainstAllDistances() throws Exception {
+    JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random())));
+    int numDocs = atLeast(500);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("parity", "" + (i % 2), Field.Store.NO));
+      if (random().nextInt(10) != 0) {
+        for (Field f : strategy.createIndexableFields(SpatialTestUtil.randomShape(random(), 10))) {
+          doc.add(f);
+        }
+      }
+      writer.addDocument(doc);
+      if (random().nextInt(200) == 0) {
+        writer.commit();
+      }
+    }
+    writer.close();
+
+    IndexReader reader = DirectoryReader.open(dir);
+    IndexSearcher searcher = new IndexSearcher(reader);
+    Filter odd = new QueryWrapperFilter(new TermQuery(new Term("parity", "1")));
+    NearestGeometries kept = strategy.newNearestGeometries();
+    // builds the envelope indexes on every search
+    NearestGeometries built = new NearestGeometries("geo", ctx, false);
+
+    int iters = atLeast(20);
+    for (int it = 0; it < iters; it++) {
+      Point from = ctx.makePoint(-180 + 360 * random().nextDouble(), -90 + 180 * random().nextDouble());
+      int k = 1 + random().nextInt(20);
+      Filter filter = random().nextBoolean() ? odd : null;
+      List<Double> expected = allDistances(reader, from, filter);
+
+      for (NearestGeometries nearest : new NearestGeometries[] { kept, built }) {
+        TopDocs docs = nearest.search(reader, from, k, filter);
+        assertEquals(Math.min(k, expected.size()), docs.scoreDocs.length);
+        for (int i = 0; i < docs.scoreDocs.length; i++) {
+          // ties may come in any order, so only the distances are compared
+          assertEquals("from " + from + " hit " + i, expected.get(i), docs.scoreDocs[i].score, 1e-5);
+        }
+      }
+
+      // the query finds the k nearest among what the filter accepts, not k then filtered
+      TopDocs docs = searcher.search(strategy.makeNearestQuery(from, k, odd), k);
+      int accepted = (filter == odd) ? expected.size() : allDistances(reader, from, odd).size();
+      assertEquals(Math.min(k, accepted), docs.scoreDocs.length);
+      FixedBitSet bits = bits(reader, odd);
+      for (ScoreDoc sd : docs.scoreDocs) {
+        assertTrue(bits.get(sd.doc));
+      }
+    }
+    reader.close();
+    dir.close();
+  }
+
+  @Test
+  public void testLowerBoundAcrossDateline() {
+    NearestGeometries nearest = new NearestGeometries("geo", ctx, false);
+    // how spatial4j keeps a box across the dateline
+    assertEquals(0, nearest.lowerBound(ctx.makePoint(-175, 0), new float[] { 170, -5, 190, 5 }, 0), 0);
+    assertEquals(0, nearest.lowerBound(ctx.makePoint(175, 0), new float[] { -190, -5, -170, 5 }, 0), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoNeighbours() {
+    new JtsGeoStrategy(ctx, "geo").makeNearestQuery(ctx.makePoint(0, 0), 0);
+  }
+
+  /**
+   * @return the distance of every accepted document with a geometry, nearest first
+   */
+  private static List<Double> allDistances(IndexReader reader, Point from, Filter filter) throws Exception {
+    GeometryDistanceValueSource source = new GeometryDistanceValueSource("geo", ctx, from, 1, false);
+    FixedBitSet accept = filter == null ? null : bits(reader, filter);
+    List<Double> distances = new ArrayList<Double>();
+    for (AtomicReaderContext context : reader.leaves()) {
+      GeometryDistanceValueSource.Distances d = source.new Distances(context.reader());
+      if (d.values == null) {
+        continue;
+      }
+      for (int doc = 0; doc < context.reader().maxDoc(); doc++) {
+        boolean live = context.reader().getLiveDocs() == null || context.reader().getLiveDocs().get(doc);
+        if (live && d.values.exists(doc) && (accept == null || accept.get(context.docBase + doc))) {
+          distances.add((double) (float) d.distance(doc));
+        }
+      }
+    }
+    Collections.sort(distances);
+    return distances;
+  }
+
+  private static FixedBitSet bits(IndexReader reader, Filter filter) throws Exception {
+    FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+    for (AtomicReaderContext context : reader.leaves()) {
+      DocIdSet set = filter.getDocIdSet(context, context.reader().getLiveDocs());
+      DocIdSetIterator it = set == null ? null : set.iterator();
+      if (it == null) {
+        continue;
+      }
+      for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+        bits.set(context.docBase + doc);
+      }
+    }
+    return bits;
+  }
+}
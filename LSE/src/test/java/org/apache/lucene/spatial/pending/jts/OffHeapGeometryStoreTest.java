@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+@LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class OffHeapGeometryStoreTest extends LuceneTestCase {
+
+  static final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+
+  @Test
+  public void testBudget() throws Exception {
+    JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random())));
+    int numDocs = atLeast(200);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      if (random().nextInt(10) != 0) {
+        for (Field f : strategy.createIndexableFields(SpatialTestUtil.randomShape(random(), 10))) {
+          doc.add(f);
+        }
+      }
+      writer.addDocument(doc);
+    }
+    writer.close();
+    AtomicReader reader = SlowCompositeReaderWrapper.wrap(DirectoryReader.open(dir));
+
+    // too small: the segment is left out and read from DocValues
+    OffHeapGeometryStore small = new OffHeapGeometryStore(1024);
+    assertNull(small.get(reader, "geo", ctx.getGeometryFactory()));
+    assertEquals(0, small.bytesUsed());
+    GeometryDocValues fallback = GeometryDocValues.get(reader, "geo", ctx.getGeometryFactory(), null, small);
+    assertNull(fallback.offHeap);
+
+    OffHeapGeometryStore store = new OffHeapGeometryStore(1 << 24);
+    OffHeapGeometryStore.Segment segment = store.get(reader, "geo", ctx.getGeometryFactory());
+    assertNotNull(segment);
+    assertEquals(segment.bytesUsed(), store.bytesUsed());
+    assertTrue(store.bytesUsed() <= store.getMaxBytes());
+
+    GeometryDocValues values = GeometryDocValues.get(reader, "geo", ctx.getGeometryFactory());
+    for (int docID = 0; docID < reader.maxDoc(); docID++) {
+      Geometry expected = values.exists(docID) ? values.getGeometry(docID) : null;
+      Geometry actual = segment.get(docID);
+      if (expected == null) {
+        assertNull(actual);
+      }
+      else {
+        assertTrue(expected.equalsExact(actual));
+        if (actual instanceof Polygon) {
+          // the array JTS asks for is kept
+          Geometry ring = ((Polygon) actual).getExteriorRing();
+          assertSame(ring.getCoordinates(), ring.getCoordinates());
+        }
+      }
+    }
+
+    reader.close();
+    assertEquals(0, store.bytesUsed());
+    dir.close();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+/**
+ * Grids of query polygons past the world bounds, as spatial4j keeps them
+ * across the dateline or as a circle near a pole makes them.
+ */
+public class QueryGridTest extends LuceneTestCase {
+
+  static final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+
+  @Test
+  public void testAcrossDateline() {
+    checkAgainstExact(ring(180, 0, 10, 100));
+  }
+
+  @Test
+  public void testPastPole() {
+    checkAgainstExact(ring(30, 85, 10, 100));
+  }
+
+  /**
+   * The envelope tests of the testers, which use the grid, never disagree
+   * with the exact predicate on the envelope
+   */
+  private void checkAgainstExact(Geometry query) {
+    // enough points for the testers to grid the query
+    assertTrue(query.getNumPoints() > 64);
+    QueryGrid grid = new QueryGrid(PreparedGeometryFactory.prepare(query), 12, 1024);
+    assertTrue(grid.getNumCells() > 1);
+
+    GeometryTest intersects = GeometryTestFactory.get(SpatialOperation.Intersects, query, ctx);
+    GeometryTest within = GeometryTestFactory.get(SpatialOperation.IsWithin, query, ctx);
+    GeometryTest disjoint = GeometryTestFactory.get(SpatialOperation.IsDisjointTo, query, ctx);
+    Envelope queryEnv = query.getEnvelopeInternal();
+    int iters = atLeast(1000);
+    for (int it = 0; it < iters; it++) {
+      double size = random().nextDouble() * 4;
+      double x = queryEnv.getMinX() - 5 + random().nextDouble() * (queryEnv.getWidth() + 10);
+      double y = queryEnv.getMinY() - 5 + random().nextDouble() * (queryEnv.getHeight() + 10);
+      Envelope env = new Envelope(x, x + size, y, y + size);
+      Geometry box = query.getFactory().toGeometry(env);
+
+      int state = grid.classify(env);
+      if (state == QueryGrid.INSIDE) {
+        assertTrue(env.toString(), query.contains(box));
+      }
+      else if (state == QueryGrid.OUTSIDE) {
+        assertFalse(env.toString(), query.intersects(box));
+      }
+
+      Boolean match = intersects.matchesEnvelope(env);
+      if (match != null) {
+        if (match) {
+          // any geometry in the envelope intersects the query
+          assertTrue(env.toString(), query.contains(box));
+        }
+        else {
+          assertFalse(env.toString(), query.intersects(box));
+        }
+      }
+      match = within.matchesEnvelope(env);
+      if (match != null && match) {
+        assertTrue(env.toString(), query.contains(box));
+      }
+      match = disjoint.matchesEnvelope(env);
+      if (match != null && match) {
+        assertFalse(env.toString(), query.intersects(box));
+      }
+    }
+  }
+
+  /**
+   * @return a polygon of n points around x,y in degrees, not clipped to the world
+   */
+  static Geometry ring(double x, double y, double radius, int n) {
+    GeometryFactory factory = ctx.getGeometryFactory();
+    Coordinate[] ring = new Coordinate[n + 1];
+    for (int i = 0; i < n; i++) {
+      double angle = 2 * Math.PI * i / n;
+      ring[i] = new Coordinate(x + radius * Math.cos(angle), y + radius * Math.sin(angle));
+    }
+    ring[n] = ring[0];
+    return factory.createPolygon(factory.createLinearRing(ring), null);
+  }
+}
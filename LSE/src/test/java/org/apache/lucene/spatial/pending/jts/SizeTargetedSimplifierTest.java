@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.vividsolutions.jts.algorithm.distance.DiscreteHausdorffDistance;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks the simplifier reaches its size in a bounded number of probes.
+ * With -Dtests.verbose=true it also prints its time against the old loop,
+ * which shrank the tolerance by 0.7 and re-encoded on every try.
+ */
+public class SizeTargetedSimplifierTest extends LuceneTestCase {
+
+  static final SizeTargetedSimplifier.Sizer WKB_SIZE = new SizeTargetedSimplifier.Sizer() {
+    @Override
+    public int sizeOf(Geometry g) {
+      return new WKBWriter().write(g).length;
+    }
+  };
+
+  @Test
+  public void testSimplifyToSize() {
+    long newNanos = 0, oldNanos = 0;
+    int iters = atLeast(20);
+    for (int it = 0; it < iters; it++) {
+      Geometry geo = randomRing(random(), 1000 + random().nextInt(10000));
+      int size = WKB_SIZE.sizeOf(geo);
+      int maxBytes = 1000 + random().nextInt(size / 2);
+
+      long start = System.nanoTime();
+      SizeTargetedSimplifier simplifier = new SizeTargetedSimplifier(geo);
+      Geometry simple = simplifier.simplifyToSize(maxBytes, size, WKB_SIZE);
+      newNanos += System.nanoTime() - start;
+
+      assertTrue(WKB_SIZE.sizeOf(simple) < maxBytes);
+      assertTrue(simple.isValid());
+      assertTrue(simplifier.getProbes() <= SizeTargetedSimplifier.MAX_PROBES * SizeTargetedSimplifier.MAX_ROUNDS);
+      // no point moved further than the tolerance; buffering 20k vertex rings
+      // to check this took more heap than the tests get
+      assertTrue(DiscreteHausdorffDistance.distance(geo, simple) <= simplifier.getTolerance() * 1.05);
+
+      if (VERBOSE) {
+        start = System.nanoTime();
+        oldLoop(geo, maxBytes);
+        oldNanos += System.nanoTime() - start;
+      }
+    }
+    if (VERBOSE) {
+      System.out.println(iters + " geometries: size targeted " + newNanos / 1000000 + " ms, 0.7 loop "
+          + oldNanos / 1000000 + " ms");
+    }
+  }
+
+  /**
+   * What JtsGeoStrategy did before
+   */
+  static Geometry oldLoop(Geometry geo, int maxBytes) {
+    Envelope env = geo.getEnvelopeInternal();
+    double mins = Math.min(env.getWidth(), env.getHeight());
+    double div = 1000;
+    Geometry simple = geo;
+    while (WKB_SIZE.sizeOf(simple) >= maxBytes) {
+      simple = TopologyPreservingSimplifier.simplify(geo, mins / div);
+      div *= .70;
+    }
+    return simple;
+  }
+
+  /**
+   * A ragged ring, like a coastline
+   */
+  static Geometry randomRing(Random r, int points) {
+    GeometryFactory factory = new GeometryFactory();
+    Coordinate[] ring = new Coordinate[points + 1];
+    double radius = 10;
+    for (int i = 0; i < points; i++) {
+      double angle = 2 * Math.PI * i / points;
+      radius = Math.max(5, Math.min(15, radius + (r.nextDouble() - 0.5)));
+      ring[i] = new Coordinate(radius * Math.cos(angle), radius * Math.sin(angle));
+    }
+    ring[points] = ring[0];
+    return factory.createPolygon(factory.createLinearRing(ring), null);
+  }
+}
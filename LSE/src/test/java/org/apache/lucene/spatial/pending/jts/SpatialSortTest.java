@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.shape.Rectangle;
+import com.spatial4j.core.shape.Shape;
+import com.vividsolutions.jts.geom.Envelope;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogMergePolicy;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Indexes the same shapes with and without sorting along the Hilbert curve,
+ * and checks the sorted segment is in key order and that its block envelopes
+ * let small queries skip more blocks.  With -Dtests.verbose=true it prints
+ * the data file size and the query time of both.
+ */
+public class SpatialSortTest extends LuceneTestCase {
+
+  static final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+
+  @Test
+  public void testSortedSegmentSkipsMoreBlocks() throws Exception {
+    List<Shape> shapes = new ArrayList<Shape>();
+    int numDocs = atLeast(3000);
+    for (int i = 0; i < numDocs; i++) {
+      shapes.add(SpatialTestUtil.randomShape(random(), 3));
+    }
+    List<Rectangle> queries = new ArrayList<Rectangle>();
+    for (int i = 0; i < 50; i++) {
+      double x = -170 + random().nextDouble() * 330;
+      double y = -80 + random().nextDouble() * 150;
+      queries.add(ctx.makeRectangle(x, x + 10, y, y + 10));
+    }
+
+    Index unsorted = new Index(shapes, null);
+    Index sorted = new Index(shapes, SpaceFillingCurve.HILBERT);
+    try {
+      NumericDocValues keys = sorted.reader.getNumericDocValues("geo" + JtsGeoStrategy.SUFFIX_SORT_KEY);
+      for (int docID = 1; docID < sorted.reader.maxDoc(); docID++) {
+        assertTrue(keys.get(docID - 1) <= keys.get(docID));
+      }
+
+      long unsortedBlocks = unsorted.blocksHit(queries);
+      long sortedBlocks = sorted.blocksHit(queries);
+      assertTrue("sorted " + sortedBlocks + " unsorted " + unsortedBlocks, sortedBlocks < unsortedBlocks);
+
+      if (VERBOSE) {
+        System.out.println("docs=" + numDocs + " blocks=" + unsorted.numBlocks());
+        System.out.println("unsorted: blocks hit=" + unsortedBlocks + " data bytes=" + unsorted.dataBytes()
+            + " query ns=" + unsorted.time(queries));
+        System.out.println("sorted:   blocks hit=" + sortedBlocks + " data bytes=" + sorted.dataBytes()
+            + " query ns=" + sorted.time(queries));
+      }
+    }
+    finally {
+      unsorted.close();
+      sorted.close();
+    }
+  }
+
+  /**
+   * One segment of the shapes, with the geometry DocValuesFormat
+   */
+  class Index {
+    final JtsGeoStrategy strategy = new JtsGeoStrategy(ctx, "geo");
+    final Directory dir = newDirectory();
+    final DirectoryReader topReader;
+    final AtomicReader reader;
+
+    Index(List<Shape> shapes, SpaceFillingCurve curve) throws Exception {
+      strategy.setStorage(JtsGeoStrategy.Storage.BINARY);
+      strategy.setSortCurve(curve);
+      IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+      iwc.setCodec(TestUtil.alwaysDocValuesFormat(new GeometryDocValuesFormat()));
+      LogMergePolicy mp = newLogMergePolicy();
+      mp.setNoCFSRatio(0);
+      iwc.setMergePolicy(curve == null ? mp : strategy.newSortingMergePolicy(mp));
+      IndexWriter writer = new IndexWriter(dir, iwc);
+      for (int i = 0; i < shapes.size(); i++) {
+        Document doc = new Document();
+        for (Field f : strategy.createIndexableFields(shapes.get(i))) {
+          doc.add(f);
+        }
+        writer.addDocument(doc);
+        // flushed segments are not sorted, only merged ones; so make
+        // several, or forceMerge has nothing to merge
+        if (i % (shapes.size() / 4) == 0) {
+          writer.commit();
+        }
+      }
+      writer.forceMerge(1);
+      writer.close();
+      topReader = DirectoryReader.open(dir);
+      reader = getOnlySegmentReader(topReader);
+    }
+
+    int numBlocks() throws Exception {
+      BlockEnvelopes blocks = (BlockEnvelopes) reader.getBinaryDocValues("geo");
+      return (reader.maxDoc() + (1 << blocks.getBlockShift()) - 1) >>> blocks.getBlockShift();
+    }
+
+    long blocksHit(List<Rectangle> queries) throws Exception {
+      BlockEnvelopes blocks = (BlockEnvelopes) reader.getBinaryDocValues("geo");
+      Envelope env = new Envelope();
+      long hit = 0;
+      for (Rectangle q : queries) {
+        Envelope query = new Envelope(q.getMinX(), q.getMaxX(), q.getMinY(), q.getMaxY());
+        for (int block = 0; block < numBlocks(); block++) {
+          if (blocks.getBlockEnvelope(block, env) && env.intersects(query)) {
+            hit++;
+          }
+        }
+      }
+      return hit;
+    }
+
+    long dataBytes() throws Exception {
+      long bytes = 0;
+      for (String file : dir.listAll()) {
+        if (file.endsWith("." + GeometryDocValuesFormat.DATA_EXTENSION)) {
+          bytes += dir.fileLength(file);
+        }
+      }
+      return bytes;
+    }
+
+    long time(List<Rectangle> queries) throws Exception {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      long start = System.nanoTime();
+      for (Rectangle q : queries) {
+        searcher.search(new ConstantScoreQuery(strategy.makeFilter(
+            new SpatialArgs(SpatialOperation.Intersects, q))), 1);
+      }
+      return System.nanoTime() - start;
+    }
+
+    void close() throws Exception {
+      topReader.close();
+      dir.close();
+    }
+  }
+}
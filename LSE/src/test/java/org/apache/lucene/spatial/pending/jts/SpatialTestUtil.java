@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.shape.Shape;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.util.FixedBitSet;
+
+import java.util.Random;
+
+/**
+ * Random shapes and result sets shared by the spatial tests.
+ */
+final class SpatialTestUtil {
+
+  static final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+
+  /**
+   * The operations the filter tests exactly
+   */
+  static final SpatialOperation[] OPS = {
+      SpatialOperation.Intersects, SpatialOperation.IsWithin,
+      SpatialOperation.Contains, SpatialOperation.IsDisjointTo };
+
+  private SpatialTestUtil() {
+  }
+
+  /**
+   * @return the top level ids of every document the query matches
+   */
+  static FixedBitSet collect(IndexSearcher searcher, ConstantScoreQuery query) throws Exception {
+    TopDocs docs = searcher.search(query, searcher.getIndexReader().maxDoc());
+    FixedBitSet bits = new FixedBitSet(searcher.getIndexReader().maxDoc());
+    for (ScoreDoc sd : docs.scoreDocs) {
+      bits.set(sd.doc);
+    }
+    return bits;
+  }
+
+  /**
+   * A point or a small random polygon away from the dateline and poles
+   */
+  static Shape randomShape(Random r, double maxSize) {
+    double x = -160 + r.nextDouble() * 320;
+    double y = -65 + r.nextDouble() * 130;
+    if (r.nextInt(4) == 0) {
+      return ctx.makePoint(x, y);
+    }
+    GeometryFactory factory = ctx.getGeometryFactory();
+    int n = 3 + r.nextInt(8);
+    double size = (0.1 + r.nextDouble()) * maxSize / 2;
+    Coordinate[] ring = new Coordinate[n + 1];
+    for (int i = 0; i < n; i++) {
+      double angle = 2 * Math.PI * i / n;
+      double radius = size * (0.5 + r.nextDouble() / 2);
+      ring[i] = new Coordinate(x + radius * Math.cos(angle), y + radius * Math.sin(angle));
+    }
+    ring[n] = ring[0];
+    Geometry geo = factory.createPolygon(factory.createLinearRing(ring), null);
+    return ctx.makeShape(geo);
+  }
+}
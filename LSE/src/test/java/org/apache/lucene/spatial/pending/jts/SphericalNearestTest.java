@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.pending.jts;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.distance.DistanceCalculator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class SphericalNearestTest extends LuceneTestCase {
+
+  static final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+
+  @Test
+  public void testAcrossDateline() throws Exception {
+    Geometry geo = new WKTReader().read("POLYGON((-179.9 -1, -170 -1, -170 1, -179.9 1, -179.9 -1))");
+    SphericalNearest nearest = new SphericalNearest(179.9, 0);
+    assertTrue(nearest.nearest(geo));
+    double d = ctx.getDistCalc().distance(ctx.makePoint(179.9, 0), nearest.getNearestX(), nearest.getNearestY());
+    assertEquals(0.2, d, 1e-9);
+  }
+
+  @Test
+  public void testInsideShifted() throws Exception {
+    // how spatial4j keeps a polygon across the dateline
+    Geometry geo = new WKTReader().read("POLYGON((170 -5, 190 -5, 190 5, 170 5, 170 -5))");
+    SphericalNearest nearest = new SphericalNearest(-175, 0);
+    assertTrue(nearest.nearest(geo));
+    assertEquals(1.0, nearest.getCloseness(), 0);
+  }
+
+  /**
+   * The edge search against the closest of many points along each edge
+   */
+  @Test
+  public void testEdgesAgainstSampling() {
+    Random r = random();
+    DistanceCalculator calc = ctx.getDistCalc();
+    GeometryFactory factory = ctx.getGeometryFactory();
+    int iters = atLeast(200);
+    for (int it = 0; it < iters; it++) {
+      double px = -180 + 360 * r.nextDouble();
+      double py = -90 + 180 * r.nextDouble();
+      double len = new double[] { 0.01, 1, 20, 200 }[r.nextInt(4)];
+      double ax = px + (r.nextDouble() - 0.5) * 4 * len;
+      double ay = clampLat(py + (r.nextDouble() - 0.5) * 2 * len);
+      if (r.nextInt(5) == 0) {
+        ax += r.nextBoolean() ? 360 : -360;
+      }
+      double bx = ax + (r.nextDouble() - 0.5) * 2 * len;
+      double by = clampLat(ay + (r.nextDouble() - 0.5) * 2 * len);
+      Geometry line = factory.createLineString(new Coordinate[] { new Coordinate(ax, ay), new Coordinate(bx, by) });
+
+      SphericalNearest nearest = new SphericalNearest(px, py);
+      nearest.nearest(line);
+      double found = calc.distance(ctx.makePoint(px, py), nearest.getNearestX(), nearest.getNearestY());
+
+      double sampled = Double.MAX_VALUE;
+      int n = 20000;
+      for (int i = 0; i <= n; i++) {
+        double t = (double) i / n;
+        sampled = Math.min(sampled, calc.distance(ctx.makePoint(px, py), ax + t * (bx - ax), ay + t * (by - ay)));
+      }
+      // sampling can only overestimate, by up to half a step
+      assertTrue("point " + px + "," + py + " line " + line + " found " + found + " sampled " + sampled,
+          found <= sampled + 1e-6);
+
+      // and what the search reports is the distance of a point on the edge
+      double t = (bx == ax) ? (nearest.getNearestY() - ay) / (by - ay) : (nearest.getNearestX() - ax) / (bx - ax);
+      assertTrue(t >= -1e-9 && t <= 1 + 1e-9);
+    }
+  }
+
+  @Test
+  public void testWithinAgreesWithNearest() throws Exception {
+    Random r = random();
+    Geometry geo = new WKTReader().read("POLYGON((-120 40, -90 45, -92 60, -121 52, -120 40))");
+    int iters = atLeast(500);
+    for (int it = 0; it < iters; it++) {
+      double px = -140 + 70 * r.nextDouble();
+      double py = 30 + 40 * r.nextDouble();
+      double radius = 5 * r.nextDouble();
+      SphericalNearest nearest = new SphericalNearest(px, py);
+      nearest.nearest(geo);
+      double d = ctx.getDistCalc().distance(ctx.makePoint(px, py), nearest.getNearestX(), nearest.getNearestY());
+      if (Math.abs(d - radius) < 1e-6) {
+        continue;
+      }
+      assertEquals(d < radius, new SphericalNearest(px, py).isWithin(geo, Math.cos(Math.toRadians(radius))));
+    }
+  }
+
+  static double clampLat(double lat) {
+    return Math.max(-90, Math.min(90, lat));
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.spatial.pending;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.SolrTestCaseJ4;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The same queries against a field with and one without a query cache.
+ */
+@LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class GeometryFieldTypeTest extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml", "schema.xml", getFile("solr").getAbsolutePath());
+  }
+
+  @Test
+  public void testWithAndWithoutQueryCache() throws Exception {
+    String[] shapes = {
+        "POINT(4 5)",
+        "POLYGON((-5 -5, 5 -5, 5 5, -5 5, -5 -5))",
+        "POINT(50 50)",
+        "POLYGON((40 40, 45 40, 45 45, 40 45, 40 40))" };
+    for (int i = 0; i < shapes.length; i++) {
+      assertU(adoc("id", "" + i, "geo", shapes[i], "geo_cached", shapes[i]));
+    }
+    assertU(commit());
+
+    // query, hits
+    Object[] queries = {
+        "Intersects(POLYGON((30 30, 60 30, 60 60, 30 60, 30 30)))", 2,
+        "Intersects(POLYGON((30 30, 60 30, 60 60, 30 60, 30 30))) distErrPct=0.1", 2,
+        "IsWithin(POLYGON((-10 -10, 10 -10, 10 10, -10 10, -10 -10)))", 2,
+        "IsDisjointTo(POINT(50 50))", 3,
+        // the legacy spatial4j syntax
+        "Intersects(Circle(4 5 d=2))", 2,
+        "Intersects(-10 -10 10 10)", 2,
+        "Intersects(4 5)", 2 };
+    for (int i = 0; i < queries.length; i += 2) {
+      for (String field : new String[] {"geo", "geo_cached", "geo_cached"}) {
+        assertQ(field + ":" + queries[i],
+            req("q", "{!field f=" + field + "}" + queries[i], "fl", "id"),
+            "//*[@numFound='" + queries[i + 1] + "']");
+      }
+    }
+  }
+}
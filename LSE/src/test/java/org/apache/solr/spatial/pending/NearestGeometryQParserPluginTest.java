@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.spatial.pending;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.QParser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * geoknn queries with fq params, which the query result cache must find
+ * again on the same searcher and run again on the next one.
+ */
+@LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class NearestGeometryQParserPluginTest extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml", "schema.xml", getFile("solr").getAbsolutePath());
+  }
+
+  @Test
+  public void testEqualForSameFilters() throws Exception {
+    Query odd = parse("parity:1");
+    assertEquals(odd, parse("parity:1"));
+    assertEquals(odd.hashCode(), parse("parity:1").hashCode());
+    assertFalse(odd.equals(parse("parity:0")));
+  }
+
+  @Test
+  public void testFiltersOnNextSearcher() throws Exception {
+    clearIndex();
+    for (int i = 1; i <= 6; i++) {
+      assertU(adoc("id", "" + i, "geo", "POINT(" + i + " 0)", "parity", "" + (i % 2)));
+    }
+    assertU(commit());
+
+    String knn = "{!geoknn sfield=geo pt=0,0 k=2}";
+    assertQ(req("q", knn, "fq", "parity:1", "fl", "id"),
+        "//*[@numFound='2']", "//result/doc[1]/str[@name='id'][.='1']", "//result/doc[2]/str[@name='id'][.='3']");
+
+    // the cached query is warmed on the new searcher, whose odd documents changed
+    assertU(adoc("id", "7", "geo", "POINT(0.5 0)", "parity", "1"));
+    assertU(commit());
+    assertQ(req("q", knn, "fq", "parity:1", "fl", "id"),
+        "//*[@numFound='2']", "//result/doc[1]/str[@name='id'][.='7']", "//result/doc[2]/str[@name='id'][.='1']");
+    // found in the warmed cache, so warming ran it on the new searcher
+    NamedList stats = h.getCore().getInfoRegistry().get("queryResultCache").getStatistics();
+    assertEquals(1L, stats.get("hits"));
+  }
+
+  private Query parse(String fq) throws Exception {
+    SolrQueryRequest req = req("fq", fq);
+    try {
+      return QParser.getParser("{!geoknn sfield=geo pt=0,0 k=3}", null, req).getQuery();
+    }
+    finally {
+      req.close();
+    }
+  }
+}
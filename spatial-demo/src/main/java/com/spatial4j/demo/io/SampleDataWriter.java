@@ -20,9 +20,8 @@ package com.spatial4j.demo.io;
 import com.spatial4j.core.context.SpatialContext;
 import com.spatial4j.core.context.jts.JtsSpatialContext;
 import com.spatial4j.core.shape.Shape;
-import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import org.apache.lucene.spatial.pending.jts.SizeTargetedSimplifier;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -32,6 +31,13 @@ import java.io.PrintWriter;
 
 public class SampleDataWriter {
 
+  static final SizeTargetedSimplifier.Sizer WKT_SIZE = new SizeTargetedSimplifier.Sizer() {
+    @Override
+    public int sizeOf(Geometry geo) {
+      return geo.toText().length();
+    }
+  };
+
   protected final PrintWriter out;
   protected final SpatialContext ctx;
   protected final boolean bbox;
@@ -60,21 +66,11 @@ public class SampleDataWriter {
     if( maxLength > 0 && v.length() > maxLength ) {
       Geometry g = ((JtsSpatialContext)ctx).getGeometryFrom(shape);
 
-      long last = v.length();
-      Envelope env = g.getEnvelopeInternal();
-      double mins = Math.min(env.getWidth(), env.getHeight());
-      double div = 1000;
-      while (v.length() > maxLength) {
-        double tolerance = mins / div;
-        System.out.println( name + " :: Simplifying long geometry: WKT.length=" + v.length() + " tolerance=" + tolerance);
-        Geometry simple = TopologyPreservingSimplifier.simplify(g, tolerance);
-        v = simple.toText();
-        if (v.length() == last) {
-          System.out.println( name + " :: Can not simplify geometry smaller then max. " + last);
-          break;
-        }
-        last = v.length();
-        div *= .70;
+      System.out.println( name + " :: Simplifying long geometry: WKT.length=" + v.length() );
+      Geometry simple = new SizeTargetedSimplifier(g).simplifyToSize(maxLength + 1, v.length(), WKT_SIZE);
+      v = simple.toText();
+      if (v.length() > maxLength) {
+        System.out.println( name + " :: Can not simplify geometry smaller then max. " + v.length());
       }
     }
     return v;